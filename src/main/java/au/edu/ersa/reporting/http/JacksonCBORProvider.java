@@ -0,0 +1,30 @@
+package au.edu.ersa.reporting.http;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
+
+/**
+ * There is no Jackson CBOR provider for this Jackson version; the Smile one does the same job given a
+ * CBOR mapper, once it matches the CBOR media type instead.
+ */
+@Provider
+@Consumes(MediaTypes.CBOR)
+@Produces(MediaTypes.CBOR)
+public class JacksonCBORProvider extends JacksonSmileProvider {
+    public JacksonCBORProvider(ObjectMapper mapper) {
+        super(mapper);
+    }
+
+    @Override
+    protected boolean hasMatchingMediaType(MediaType mediaType) {
+        if (mediaType == null) { return true; }
+
+        String subtype = mediaType.getSubtype();
+        return "cbor".equals(subtype) || subtype.endsWith("+cbor");
+    }
+}
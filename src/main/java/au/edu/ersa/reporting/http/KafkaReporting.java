@@ -4,8 +4,13 @@ import io.dropwizard.Application;
 import io.dropwizard.auth.AuthFactory;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.CachingAuthenticator;
+import io.dropwizard.auth.ChainedAuthFactory;
 import io.dropwizard.auth.basic.BasicAuthFactory;
 import io.dropwizard.auth.basic.BasicCredentials;
+import io.dropwizard.auth.oauth.OAuthFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jetty.GzipFilterFactory;
+import io.dropwizard.server.AbstractServerFactory;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.swagger.config.FilterFactory;
@@ -21,32 +26,47 @@ import java.io.IOException;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
+import javax.ws.rs.HttpMethod;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import au.edu.ersa.reporting.http.KafkaReportingConfiguration.AuthType;
 import au.edu.ersa.reporting.http.KafkaReportingConfiguration.DynamoConfig;
+import au.edu.ersa.reporting.http.api.MessageValidator;
 import au.edu.ersa.reporting.http.health.PingHealthCheck;
 import au.edu.ersa.reporting.http.health.ZKHealthCheck;
 import au.edu.ersa.reporting.http.resources.BrokerResource;
 import au.edu.ersa.reporting.http.resources.StatusResource;
+import au.edu.ersa.reporting.http.resources.TokenResource;
 import au.edu.ersa.reporting.http.resources.TopicResource;
 import au.edu.ersa.reporting.http.resources.UserResource;
+import au.edu.ersa.reporting.kzk.ConsumerPool;
+import au.edu.ersa.reporting.kzk.Deduplicator;
+import au.edu.ersa.reporting.kzk.FetchCache;
 import au.edu.ersa.reporting.kzk.Kafka;
+import au.edu.ersa.reporting.kzk.Metadata;
+import au.edu.ersa.reporting.kzk.Spool;
+import au.edu.ersa.reporting.kzk.Tailers;
+import au.edu.ersa.reporting.kzk.TimeIndex;
 import au.edu.ersa.reporting.kzk.ZK;
 import au.edu.ersa.reporting.security.AuthAlgorithm;
 import au.edu.ersa.reporting.security.BasicAuth;
 import au.edu.ersa.reporting.security.DynamoDBAuthenticator;
 import au.edu.ersa.reporting.security.HMAC;
 import au.edu.ersa.reporting.security.LocalFileAuthenticator;
+import au.edu.ersa.reporting.security.SessionTokens;
 import au.edu.ersa.reporting.security.User;
 
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -54,9 +74,14 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.codahale.metrics.health.HealthCheck;
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 
 public class KafkaReporting extends Application<KafkaReportingConfiguration> {
@@ -75,6 +100,8 @@ public class KafkaReporting extends Application<KafkaReportingConfiguration> {
     private static final Splitter ZK_SPLITTER = Splitter.on(CharMatcher.BREAKING_WHITESPACE).omitEmptyStrings().trimResults();
     private static final Joiner ZK_JOINER = Joiner.on(',');
 
+    private static final String SESSION_KEY_PURPOSE = "session-token signing";
+
     private static class SwaggerFilter extends AbstractSpecFilter {
         @Override
         public boolean isParamAllowed(Parameter parameter, Operation operation, ApiDescription api, Map<String, List<String>> params, Map<String, String> cookies, Map<String, List<String>> headers) {
@@ -97,15 +124,49 @@ public class KafkaReporting extends Application<KafkaReportingConfiguration> {
     public void run(KafkaReportingConfiguration config, Environment env) throws Exception {
         // Swagger requirements.
         env.getObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        env.jersey().register(new JacksonSmileProvider(Jackson.newObjectMapper(new SmileFactory()).setSerializationInclusion(JsonInclude.Include.NON_NULL)));
+        env.jersey().register(new JacksonCBORProvider(Jackson.newObjectMapper(new CBORFactory()).setSerializationInclusion(JsonInclude.Include.NON_NULL)));
         FilterFactory.setFilter(new SwaggerFilter());
 
+        // The server's gzip filter decodes gzip and deflate bodies and compresses responses; fetches by POST
+        // return messages too. lz4 shares its minimum size.
+        GzipFilterFactory gzip = config.getServerFactory() instanceof AbstractServerFactory ? ((AbstractServerFactory)config.getServerFactory()).getGzipFilterFactory() : null;
+
+        if (gzip != null && gzip.getIncludedMethods().isEmpty()) {
+            gzip.setIncludedMethods(ImmutableSet.of(HttpMethod.GET, HttpMethod.POST));
+        }
+
+        if (config.getCompression().isLz4()) {
+            int minimumSize = gzip == null ? 0 : (int)gzip.getMinimumEntitySize().toBytes();
+            env.jersey().register(new LZ4Encoding(config.getCompression().isLz4High(), minimumSize));
+        }
+
         // Tolerate a whitespace- or comma-separated ZK connection string.
         String zkConnectionString = ZK_JOINER.join(ZK_SPLITTER.split(config.getZkConnectionString()));
 
         CuratorFramework curator = CuratorFrameworkFactory.newClient(zkConnectionString, new ExponentialBackoffRetry(500, Integer.MAX_VALUE, 5));
 
         ZK zk = new ZK(curator);
-        Kafka kafka = new Kafka(zk);
+        Metadata metadata = new Metadata(curator, env.metrics());
+        ConsumerPool consumers = new ConsumerPool(config.getConsumer(), env.metrics());
+
+        // Short per-broker fan-out and offset refreshes; long polls get their own threads so they can't queue behind them.
+        ExecutorService fetchExecutor = env.lifecycle().executorService("fetch-%d").
+                minThreads(config.getConsumer().getFetchThreads()).
+                maxThreads(config.getConsumer().getFetchThreads()).
+                workQueue(new ArrayBlockingQueue<>(config.getConsumer().getFetchQueue())).
+                build();
+
+        ExecutorService longPollExecutor = env.lifecycle().executorService("long-poll-%d").
+                minThreads(config.getConsumer().getLongPollThreads()).
+                maxThreads(config.getConsumer().getLongPollThreads()).
+                workQueue(new ArrayBlockingQueue<>(config.getConsumer().getLongPollQueue())).
+                build();
+
+        FetchCache fetchCache = new FetchCache(config.getFetchCache(), env.metrics());
+
+        Kafka kafka = new Kafka(zk, metadata, consumers, fetchExecutor, config.getConsumer(), fetchCache, config.getProducer(), new Spool(config.getSpool(), env.metrics()));
 
         AuthAlgorithm auth = new HMAC(config.getHexAuthKey());
 
@@ -122,7 +183,8 @@ public class KafkaReporting extends Application<KafkaReportingConfiguration> {
             basicAuth = new DynamoDBAuthenticator(auth,
                     new BasicAWSCredentials(dc.getAccess(), dc.getSecret()),
                     Region.getRegion(Regions.fromName(dc.getRegion())),
-                    dc.getTable());
+                    dc.getTable(),
+                    dc.getCache());
         } else {
             throw new Exception("no authentication provider specified");
         }
@@ -131,10 +193,25 @@ public class KafkaReporting extends Application<KafkaReportingConfiguration> {
 
         Authenticator<BasicCredentials,User> authenticator = basicAuth;
         if (config.getAuthCache() != null) {
-            authenticator = new CachingAuthenticator<>(env.metrics(), basicAuth, config.getAuthCache());
+            CachingAuthenticator<BasicCredentials,User> cache = new CachingAuthenticator<>(env.metrics(), basicAuth, config.getAuthCache());
+
+            // Only the users that changed drop out; everyone else stays cached.
+            basicAuth.onChange(ids -> cache.invalidateAll(credentials -> ids.contains(credentials.getUsername())));
+
+            authenticator = cache;
         }
 
-        env.jersey().register(AuthFactory.binder(new BasicAuthFactory<User>(authenticator, getClass().getSimpleName(), User.class)));
+        // Basic credentials can be swapped for a signed session token at /token, checked without a lookup.
+        String sessionHexKey = config.getSession().getHexKey();
+        byte[] sessionKey = sessionHexKey != null ? Wrap.runtimeException(() -> Hex.decodeHex(sessionHexKey.toCharArray())) : HMAC.deriveKey(config.getHexAuthKey(), SESSION_KEY_PURPOSE);
+        SessionTokens tokens = new SessionTokens(sessionKey, config.getSession().getLifetime().toMilliseconds());
+
+        // A list rather than varargs, which would be an unchecked generic array.
+        List<AuthFactory<?,User>> authFactories = ImmutableList.of(
+                new BasicAuthFactory<User>(authenticator, getClass().getSimpleName(), User.class),
+                new OAuthFactory<User>(tokens, getClass().getSimpleName(), User.class));
+
+        env.jersey().register(AuthFactory.binder(new ChainedAuthFactory<User>(authFactories)));
 
         // addCORS(env, "*");
 
@@ -145,12 +222,22 @@ public class KafkaReporting extends Application<KafkaReportingConfiguration> {
         env.healthChecks().register("zk", zkHealthCheck);
 
         env.lifecycle().manage(zk);
+        env.lifecycle().manage(metadata);
+        env.lifecycle().manage(consumers);
         env.lifecycle().manage(kafka);
 
         env.jersey().register(new StatusResource(pingHealthCheck, zkHealthCheck));
-        env.jersey().register(new TopicResource(kafka));
+        Tailers tailers = new Tailers(kafka);
+        env.lifecycle().manage(tailers);
+
+        TimeIndex timeIndex = new TimeIndex(kafka, config.getTimeIndex());
+        env.lifecycle().manage(timeIndex);
+
+        env.jersey().register(SseFeature.class);
+        env.jersey().register(new TopicResource(kafka, longPollExecutor, tailers, timeIndex, new Deduplicator(config.getDedup(), env.metrics()), new MessageValidator(config.getValidation())));
         env.jersey().register(new BrokerResource(kafka));
         env.jersey().register(new UserResource(basicAuth));
+        env.jersey().register(new TokenResource(basicAuth, tokens));
 
         env.jersey().register(new ApiListingResource());
 
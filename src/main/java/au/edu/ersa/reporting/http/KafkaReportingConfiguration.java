@@ -1,6 +1,13 @@
 package au.edu.ersa.reporting.http;
 
 import io.dropwizard.Configuration;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.validation.constraints.NotNull;
 
@@ -9,6 +16,8 @@ import org.hibernate.validator.constraints.NotEmpty;
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 public class KafkaReportingConfiguration extends Configuration {
     @NotEmpty
@@ -65,6 +74,7 @@ public class KafkaReportingConfiguration extends Configuration {
 
     public static class DynamoConfig extends Configuration {
         private String region, table, access, secret;
+        private CacheBuilderSpec cache = CacheBuilderSpec.parse("maximumSize=10000, expireAfterWrite=1m");
 
         @JsonProperty
         public String getRegion() {
@@ -85,6 +95,12 @@ public class KafkaReportingConfiguration extends Configuration {
         public String getSecret() {
             return secret;
         }
+
+        /** Users and their ACLs, as read from DynamoDB. */
+        @JsonProperty
+        public CacheBuilderSpec getCache() {
+            return cache;
+        }
     }
 
     private DynamoConfig dynamoDB;
@@ -93,4 +109,374 @@ public class KafkaReportingConfiguration extends Configuration {
     public DynamoConfig getDynamoDB() {
         return dynamoDB;
     }
+
+    public static class ConsumerConfig {
+        private int maxPerBroker = 8;
+        private int maxLongPollsPerBroker = 64;
+        private Duration soTimeout = Duration.seconds(30);
+        private Size bufferSize = Size.kilobytes(64);
+        private Duration idleTimeout = Duration.minutes(1);
+        private Duration checkoutTimeout = Duration.seconds(10);
+        private int fetchThreads = 64;
+        private int fetchQueue = 1024;
+        private int longPollThreads = 64;
+        private int longPollQueue = 1024;
+        private Duration offsetRefreshInterval = Duration.seconds(5);
+        private Duration brokerTimeout = Duration.seconds(10);
+
+        @JsonProperty
+        public int getMaxPerBroker() {
+            return maxPerBroker;
+        }
+
+        @JsonProperty
+        public int getMaxLongPollsPerBroker() {
+            return maxLongPollsPerBroker;
+        }
+
+        @JsonProperty
+        public Duration getSoTimeout() {
+            return soTimeout;
+        }
+
+        @JsonProperty
+        public Size getBufferSize() {
+            return bufferSize;
+        }
+
+        @JsonProperty
+        public Duration getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        @JsonProperty
+        public Duration getCheckoutTimeout() {
+            return checkoutTimeout;
+        }
+
+        @JsonProperty
+        public int getFetchThreads() {
+            return fetchThreads;
+        }
+
+        @JsonProperty
+        public int getFetchQueue() {
+            return fetchQueue;
+        }
+
+        @JsonProperty
+        public int getLongPollThreads() {
+            return longPollThreads;
+        }
+
+        @JsonProperty
+        public int getLongPollQueue() {
+            return longPollQueue;
+        }
+
+        @JsonProperty
+        public Duration getOffsetRefreshInterval() {
+            return offsetRefreshInterval;
+        }
+
+        @JsonProperty
+        public Duration getBrokerTimeout() {
+            return brokerTimeout;
+        }
+    }
+
+    private ConsumerConfig consumer = new ConsumerConfig();
+
+    @JsonProperty
+    public ConsumerConfig getConsumer() {
+        return consumer;
+    }
+
+    public static class FetchCacheConfig {
+        private List<String> topics = new ArrayList<>();
+        private Size maxSize = Size.megabytes(256);
+        private boolean offHeap = false;
+
+        @JsonProperty
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        @JsonProperty
+        public Size getMaxSize() {
+            return maxSize;
+        }
+
+        @JsonProperty
+        public boolean isOffHeap() {
+            return offHeap;
+        }
+    }
+
+    private FetchCacheConfig fetchCache = new FetchCacheConfig();
+
+    @JsonProperty
+    public FetchCacheConfig getFetchCache() {
+        return fetchCache;
+    }
+
+    public static class TimeIndexConfig {
+        private List<String> topics = new ArrayList<>();
+        private String directory;
+        private long stride = 1000;
+        private Duration interval = Duration.minutes(1);
+
+        @JsonProperty
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        @JsonProperty
+        public String getDirectory() {
+            return directory;
+        }
+
+        @JsonProperty
+        public long getStride() {
+            return stride;
+        }
+
+        @JsonProperty
+        public Duration getInterval() {
+            return interval;
+        }
+    }
+
+    private TimeIndexConfig timeIndex = new TimeIndexConfig();
+
+    @JsonProperty
+    public TimeIndexConfig getTimeIndex() {
+        return timeIndex;
+    }
+
+    public static class ProducerConfig {
+        private int producers = 1;
+        private String acks = "-1";
+        private Size batchSize = Size.kilobytes(16);
+        private Duration linger = Duration.milliseconds(0);
+        private String compression = "none";
+        private Size bufferMemory = Size.megabytes(32);
+        private int maxInFlight = 5;
+        private Map<String,String> properties = new HashMap<>();
+        private Map<String,Map<String,String>> topics = new HashMap<>();
+        private String partitioning = "random";
+        private Map<String,String> topicPartitioning = new HashMap<>();
+        private String encoding = "json";
+        private Map<String,String> topicEncoding = new HashMap<>();
+
+        @JsonProperty
+        public int getProducers() {
+            return producers;
+        }
+
+        @JsonProperty
+        public String getAcks() {
+            return acks;
+        }
+
+        @JsonProperty
+        public Size getBatchSize() {
+            return batchSize;
+        }
+
+        @JsonProperty
+        public Duration getLinger() {
+            return linger;
+        }
+
+        @JsonProperty
+        public String getCompression() {
+            return compression;
+        }
+
+        @JsonProperty
+        public Size getBufferMemory() {
+            return bufferMemory;
+        }
+
+        @JsonProperty
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        /** Any other Kafka producer properties, applied to every producer. */
+        @JsonProperty
+        public Map<String,String> getProperties() {
+            return properties;
+        }
+
+        /** Kafka producer properties per topic; each topic listed here gets a producer of its own. */
+        @JsonProperty
+        public Map<String,Map<String,String>> getTopics() {
+            return topics;
+        }
+
+        /** One of random, round-robin, sticky, session or field:name. */
+        @JsonProperty
+        public String getPartitioning() {
+            return partitioning;
+        }
+
+        @JsonProperty
+        public Map<String,String> getTopicPartitioning() {
+            return topicPartitioning;
+        }
+
+        /** How messages are stored in Kafka: json, or smile (turned back into JSON when fetched). */
+        @JsonProperty
+        public String getEncoding() {
+            return encoding;
+        }
+
+        @JsonProperty
+        public Map<String,String> getTopicEncoding() {
+            return topicEncoding;
+        }
+    }
+
+    private ProducerConfig producer = new ProducerConfig();
+
+    @JsonProperty
+    public ProducerConfig getProducer() {
+        return producer;
+    }
+
+    public static class DedupConfig {
+        private List<String> topics = new ArrayList<>();
+        private Duration window = Duration.minutes(10);
+        private Size maxSize = Size.megabytes(32);
+        private String mode = "drop";
+
+        @JsonProperty
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        @JsonProperty
+        public Duration getWindow() {
+            return window;
+        }
+
+        @JsonProperty
+        public Size getMaxSize() {
+            return maxSize;
+        }
+
+        /** drop or flag. */
+        @JsonProperty
+        public String getMode() {
+            return mode;
+        }
+    }
+
+    private DedupConfig dedup = new DedupConfig();
+
+    @JsonProperty
+    public DedupConfig getDedup() {
+        return dedup;
+    }
+
+
+    public static class SpoolConfig {
+        private String directory;
+        private Size segmentSize = Size.megabytes(64);
+        private Size maxSize = Size.gigabytes(1);
+        private boolean fsync = false;
+
+        @JsonProperty
+        public String getDirectory() {
+            return directory;
+        }
+
+        @JsonProperty
+        public Size getSegmentSize() {
+            return segmentSize;
+        }
+
+        @JsonProperty
+        public Size getMaxSize() {
+            return maxSize;
+        }
+
+        @JsonProperty
+        public boolean isFsync() {
+            return fsync;
+        }
+    }
+
+    private SpoolConfig spool = new SpoolConfig();
+
+    @JsonProperty
+    public SpoolConfig getSpool() {
+        return spool;
+    }
+
+    public static class ValidationConfig {
+        private Map<String,Map<String,List<String>>> data = ImmutableMap.of("*", ImmutableMap.of(
+                "hostname", ImmutableList.of("string"),
+                "timestamp", ImmutableList.of("integer")));
+
+        /** Required data fields and their types, by "schema/version", "schema" or "*". */
+        @JsonProperty
+        public Map<String,Map<String,List<String>>> getData() {
+            return data;
+        }
+    }
+
+    private ValidationConfig validation = new ValidationConfig();
+
+    @JsonProperty
+    public ValidationConfig getValidation() {
+        return validation;
+    }
+
+    public static class SessionConfig {
+        private String hexKey;
+        private Duration lifetime = Duration.minutes(15);
+
+        /** Defaults to a key derived from hexAuthKey with HKDF, distinct from any password secret. */
+        @JsonProperty
+        public String getHexKey() {
+            return hexKey;
+        }
+
+        @JsonProperty
+        public Duration getLifetime() {
+            return lifetime;
+        }
+    }
+
+    private SessionConfig session = new SessionConfig();
+
+    @JsonProperty
+    public SessionConfig getSession() {
+        return session;
+    }
+
+    public static class CompressionConfig {
+        private boolean lz4 = true;
+        private boolean lz4High = false;
+
+        @JsonProperty
+        public boolean isLz4() {
+            return lz4;
+        }
+
+        @JsonProperty
+        public boolean isLz4High() {
+            return lz4High;
+        }
+    }
+
+    private CompressionConfig compression = new CompressionConfig();
+
+    @JsonProperty
+    public CompressionConfig getCompression() {
+        return compression;
+    }
 }
@@ -0,0 +1,170 @@
+package au.edu.ersa.reporting.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+
+import com.google.common.base.Splitter;
+
+/**
+ * The lz4 content coding, in lz4-java's block stream format, for request bodies and for message responses
+ * of at least the minimum size. gzip and deflate are left to the server's gzip filter, which stands aside
+ * for responses that already have a content encoding.
+ */
+@Provider
+public class LZ4Encoding implements ReaderInterceptor, WriterInterceptor {
+    public static final String LZ4 = "lz4";
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int CHECKSUM_SEED = 0x9747b28c;
+
+    private static final List<MediaType> COMPRESSIBLE = Arrays.asList(MediaType.APPLICATION_JSON_TYPE, MediaTypes.NDJSON_TYPE, MediaTypes.SMILE_TYPE, MediaTypes.CBOR_TYPE);
+
+    private static final Splitter CODINGS = Splitter.on(',').trimResults().omitEmptyStrings();
+    private static final Splitter PARAMETERS = Splitter.on(';').trimResults();
+
+    private final LZ4Compressor compressor;
+    private final int minimumSize;
+
+    @Context
+    private HttpHeaders request;
+
+    public LZ4Encoding(boolean high, int minimumSize) {
+        this.compressor = high ? LZ4Factory.fastestInstance().highCompressor() : LZ4Factory.fastestInstance().fastCompressor();
+        this.minimumSize = minimumSize;
+    }
+
+    @Override
+    public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException {
+        if (LZ4.equalsIgnoreCase(context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))) {
+            context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+            context.setInputStream(new LZ4BlockInputStream(context.getInputStream()));
+        }
+
+        return context.proceed();
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        if (context.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING) || !isCompressible(context.getMediaType())) {
+            context.proceed();
+            return;
+        }
+
+        // The coding depends on the request whether or not this one gets it, so caches must know.
+        addVary(context.getHeaders());
+
+        if (!acceptsLZ4()) {
+            context.proceed();
+            return;
+        }
+
+        ThresholdStream stream = new ThresholdStream(context.getOutputStream(), context.getHeaders());
+        context.setOutputStream(stream);
+        context.proceed();
+        stream.finish();
+    }
+
+    private static void addVary(MultivaluedMap<String,Object> headers) {
+        List<Object> vary = headers.get(HttpHeaders.VARY);
+
+        if (vary == null || vary.stream().flatMap(v -> CODINGS.splitToList(v.toString()).stream()).noneMatch(HttpHeaders.ACCEPT_ENCODING::equalsIgnoreCase)) {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+    }
+
+    private static boolean isCompressible(MediaType type) {
+        return type != null && COMPRESSIBLE.stream().anyMatch(type::isCompatible);
+    }
+
+    private boolean acceptsLZ4() {
+        List<String> headers = request.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+
+        if (headers == null) { return false; }
+
+        for (String header : headers) {
+            for (String coding : CODINGS.split(header)) {
+                List<String> parameters = PARAMETERS.splitToList(coding);
+
+                if (parameters.get(0).equalsIgnoreCase(LZ4)) {
+                    return parameters.stream().skip(1).noneMatch(p -> p.matches("q\\s*=\\s*0(\\.0*)?"));
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Holds output back until it reaches the minimum size, so that small responses go out as they are;
+     * a flush before then is deferred, as the headers cannot be committed until the choice is made. Once
+     * compressing, a flush passes on only the blocks already filled: forcing out a partial block on every
+     * flush, as line-by-line writers do, would compress each line on its own.
+     */
+    private final class ThresholdStream extends OutputStream {
+        private final OutputStream out;
+        private final MultivaluedMap<String,Object> headers;
+
+        private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private LZ4BlockOutputStream lz4;
+
+        ThresholdStream(OutputStream out, MultivaluedMap<String,Object> headers) {
+            this.out = out;
+            this.headers = headers;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (lz4 != null) {
+                lz4.write(b, off, len);
+            } else {
+                pending.write(b, off, len);
+
+                if (pending.size() >= minimumSize) {
+                    headers.putSingle(HttpHeaders.CONTENT_ENCODING, LZ4);
+                    lz4 = new LZ4BlockOutputStream(out, BLOCK_SIZE, compressor, XXHashFactory.fastestInstance().newStreamingHash32(CHECKSUM_SEED).asChecksum(), true);
+                    pending.writeTo(lz4);
+                    pending = null;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (lz4 != null) { out.flush(); }
+        }
+
+        void finish() throws IOException {
+            if (lz4 != null) {
+                lz4.finish();
+            } else {
+                pending.writeTo(out);
+            }
+
+            out.flush();
+        }
+    }
+}
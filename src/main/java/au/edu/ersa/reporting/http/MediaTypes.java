@@ -0,0 +1,14 @@
+package au.edu.ersa.reporting.http;
+
+import javax.ws.rs.core.MediaType;
+
+public class MediaTypes {
+    public static final String NDJSON = "application/x-ndjson";
+    public static final MediaType NDJSON_TYPE = MediaType.valueOf(NDJSON);
+
+    public static final String SMILE = "application/x-jackson-smile";
+    public static final MediaType SMILE_TYPE = MediaType.valueOf(SMILE);
+
+    public static final String CBOR = "application/cbor";
+    public static final MediaType CBOR_TYPE = MediaType.valueOf(CBOR);
+}
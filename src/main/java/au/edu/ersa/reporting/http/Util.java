@@ -1,14 +1,53 @@
 package au.edu.ersa.reporting.http;
 
-import javax.validation.Validation;
-import javax.validation.Validator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import javax.ws.rs.core.MediaType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 public class Util {
-    public static final Validator VALIDATOR = Validation.buildDefaultValidatorFactory().getValidator();
     public static final ObjectMapper JSON = new ObjectMapper().enable(DeserializationFeature.FAIL_ON_READING_DUP_TREE_KEY);
+    public static final ObjectMapper SMILE = new ObjectMapper(new SmileFactory()).enable(DeserializationFeature.FAIL_ON_READING_DUP_TREE_KEY);
+    public static final ObjectMapper CBOR = new ObjectMapper(new CBORFactory()).enable(DeserializationFeature.FAIL_ON_READING_DUP_TREE_KEY);
+
+    public static ObjectMapper mapperFor(MediaType type) {
+        if (type != null && type.isCompatible(MediaTypes.SMILE_TYPE)) {
+            return SMILE;
+        } else if (type != null && type.isCompatible(MediaTypes.CBOR_TYPE)) {
+            return CBOR;
+        } else {
+            return JSON;
+        }
+    }
+
+    /** Whether a payload starts with the Smile header rather than being JSON text. */
+    public static boolean isSmile(ByteBuffer payload) {
+        int p = payload.position();
+        return payload.remaining() >= 3 && payload.get(p) == ':' && payload.get(p + 1) == ')' && payload.get(p + 2) == '\n';
+    }
+
+    public static boolean isSmile(byte[] payload) {
+        return isSmile(ByteBuffer.wrap(payload));
+    }
+
+    public static byte[] smileToJSON(byte[] smile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(smile.length * 2);
+
+        try (JsonParser parser = SMILE.getFactory().createParser(smile); JsonGenerator json = JSON.getFactory().createGenerator(out)) {
+            parser.nextToken();
+            json.copyCurrentStructure(parser);
+        }
+
+        return out.toByteArray();
+    }
 
     public static boolean anyAreNull(Object... objects) {
         for (Object o : objects) {
@@ -0,0 +1,26 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a batch that was only partly accepted, sent with status 207. Messages are taken in order
+ * and a batch stops at its first problem, so what was taken is always the first {@code accepted} messages
+ * of the batch; of those, the ones in {@code failed} were then refused by Kafka. {@code rejected} holds the
+ * invalid messages that stopped the batch, and {@code error} says why it stopped, if it did.
+ */
+public class IngestResult extends ReportingResponse {
+    public static final int STATUS = 207;
+
+    public final int accepted;
+    public final List<String> failed;
+    public final List<String> rejected;
+    public final String error;
+
+    public IngestResult(int accepted, List<String> failed, List<String> rejected, String error) {
+        this.accepted = accepted;
+        this.failed = Collections.unmodifiableList(failed);
+        this.rejected = Collections.unmodifiableList(rejected);
+        this.error = error;
+    }
+}
@@ -0,0 +1,116 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import au.edu.ersa.reporting.http.Util;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Reads messages one at a time from a JSON array of messages, newline-delimited messages or a
+ * {@link TopicMessageMap} document, so that a batch never has to be held in memory as a whole.
+ */
+public class MessageReader implements Closeable {
+    private static final int DOCUMENT = 0, TOPICS = 1, MESSAGES = 2;
+
+    private final JsonParser parser;
+    private final ObjectReader reader;
+    private final boolean topicMap, lines;
+
+    private int level;
+    private String topic;
+
+    private MessageReader(ObjectMapper mapper, InputStream in, boolean topicMap, boolean lines, String topic) throws IOException {
+        this.parser = mapper.getFactory().createParser(in);
+        this.reader = mapper.reader(Message.class);
+        this.topicMap = topicMap;
+        this.lines = lines;
+        this.topic = topic;
+
+        if (topicMap) {
+            expect(JsonToken.START_OBJECT);
+            level = DOCUMENT;
+        } else {
+            if (!lines) { expect(JsonToken.START_ARRAY); }
+            level = MESSAGES;
+        }
+    }
+
+    /** Reads an array of messages for one topic, in whichever format the mapper is for. */
+    public static MessageReader forTopic(ObjectMapper mapper, InputStream in, String topic) throws IOException {
+        return new MessageReader(mapper, in, false, false, topic);
+    }
+
+    /** Reads newline-delimited JSON messages for one topic. */
+    public static MessageReader forLines(InputStream in, String topic) throws IOException {
+        return new MessageReader(Util.JSON, in, false, true, topic);
+    }
+
+    /** Reads a {@link TopicMessageMap} document, in whichever format the mapper is for. */
+    public static MessageReader forTopicMap(ObjectMapper mapper, InputStream in) throws IOException {
+        return new MessageReader(mapper, in, true, false, null);
+    }
+
+    /** The topic of the message last returned by next(). */
+    public String getTopic() { return topic; }
+
+    /** Returns the next message, or null at the end of the document. */
+    public Message next() throws IOException {
+        while (true) {
+            JsonToken token = parser.nextToken();
+
+            if (level == MESSAGES) {
+                if (token == JsonToken.START_OBJECT) {
+                    return reader.readValue(parser);
+                } else if (lines && token == null) {
+                    return null;
+                } else if (!lines && token == JsonToken.END_ARRAY) {
+                    if (!topicMap) { return null; }
+                    level = TOPICS;
+                } else {
+                    throw unexpected(token);
+                }
+            } else if (level == TOPICS) {
+                if (token == JsonToken.FIELD_NAME) {
+                    topic = parser.getCurrentName();
+                    expect(JsonToken.START_ARRAY);
+                    level = MESSAGES;
+                } else if (token == JsonToken.END_OBJECT) {
+                    level = DOCUMENT;
+                } else {
+                    throw unexpected(token);
+                }
+            } else {
+                if (token == JsonToken.FIELD_NAME && "messages".equals(parser.getCurrentName())) {
+                    expect(JsonToken.START_OBJECT);
+                    level = TOPICS;
+                } else if (token == JsonToken.END_OBJECT) {
+                    return null;
+                } else {
+                    throw unexpected(token);
+                }
+            }
+        }
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = parser.nextToken();
+
+        if (token != expected) { throw unexpected(token); }
+    }
+
+    private JsonParseException unexpected(JsonToken token) {
+        return new JsonParseException("unexpected " + (token == null ? "end of input" : token), parser.getCurrentLocation());
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
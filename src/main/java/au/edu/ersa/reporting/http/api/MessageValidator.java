@@ -0,0 +1,192 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.ValidationConfig;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Checks the fields of a {@link Message} without reflection, and its data against the requirements for
+ * its schema and version. These checks are the only constraints on a message. Requirements are resolved
+ * once, when the validator is built, into per-schema tables.
+ */
+public class MessageValidator {
+    private static final String ANY_SCHEMA = "*";
+
+    /** Batches at least this large are validated in parallel. */
+    private static final int PARALLEL_MIN = 256;
+
+    private static final Map<String,List<Class<?>>> TYPES = ImmutableMap.<String,List<Class<?>>>builder().
+            put("string", ImmutableList.of(String.class)).
+            put("integer", ImmutableList.of(Integer.class, Long.class)).
+            put("number", ImmutableList.of(Integer.class, Long.class, BigInteger.class, Double.class, Float.class, BigDecimal.class)).
+            put("boolean", ImmutableList.of(Boolean.class)).
+            put("list", ImmutableList.of(List.class)).
+            put("map", ImmutableList.of(Map.class)).
+            build();
+
+    public static final MessageValidator DEFAULT = new MessageValidator(new ValidationConfig());
+
+    private static final class DataRule {
+        final String[] fields;
+        final Class<?>[][] types;
+        final String[] typeNames;
+
+        DataRule(Map<String,List<String>> requirements) {
+            int n = requirements.size();
+
+            fields = new String[n];
+            types = new Class<?>[n][];
+            typeNames = new String[n];
+
+            int i = 0;
+            for (Map.Entry<String,List<String>> requirement : requirements.entrySet()) {
+                fields[i] = requirement.getKey();
+                types[i] = requirement.getValue().stream().flatMap(type -> typesFor(type).stream()).distinct().toArray(Class<?>[]::new);
+                typeNames[i] = requirement.getValue().toString();
+                i++;
+            }
+        }
+
+        void check(Map<?,?> data, List<String> violations) {
+            for (int i = 0; i < fields.length; i++) {
+                Object value = data.get(fields[i]);
+
+                if (value == null && !data.containsKey(fields[i])) {
+                    violations.add(String.format("absent: data[%s]", fields[i]));
+                } else if (!isInstance(types[i], value)) {
+                    violations.add(String.format("invalid type: data[%s] must be in %s", fields[i], typeNames[i]));
+                }
+            }
+        }
+
+        private static boolean isInstance(Class<?>[] types, Object value) {
+            if (value == null) { return false; }
+
+            for (Class<?> type : types) {
+                if (type.isInstance(value)) { return true; }
+            }
+
+            return false;
+        }
+    }
+
+    /** The rules for one schema: for any version, and for particular versions. */
+    private static final class SchemaRules {
+        DataRule any;
+        final Map<Integer,DataRule> versions = new HashMap<>();
+    }
+
+    private final Map<String,SchemaRules> schemas = new HashMap<>();
+    private final DataRule fallback;
+
+    public MessageValidator(ValidationConfig config) {
+        DataRule fallback = null;
+
+        for (Map.Entry<String,Map<String,List<String>>> entry : config.getData().entrySet()) {
+            String key = entry.getKey();
+            DataRule rule = new DataRule(entry.getValue());
+
+            if (key.equals(ANY_SCHEMA)) {
+                fallback = rule;
+                continue;
+            }
+
+            int slash = key.lastIndexOf('/');
+            Integer version = slash < 0 ? null : parseVersion(key.substring(slash + 1));
+            SchemaRules rules = schemas.computeIfAbsent(version == null ? key : key.substring(0, slash), schema -> new SchemaRules());
+
+            if (version == null) {
+                rules.any = rule;
+            } else {
+                rules.versions.put(version, rule);
+            }
+        }
+
+        this.fallback = fallback;
+    }
+
+    private static Integer parseVersion(String version) {
+        try {
+            return Integer.valueOf(version);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static List<Class<?>> typesFor(String type) {
+        List<Class<?>> types = TYPES.get(type);
+
+        if (types == null) { throw new IllegalArgumentException("unknown data type: " + type); }
+
+        return types;
+    }
+
+    private DataRule ruleFor(Message message) {
+        SchemaRules rules = message.schema == null ? null : schemas.get(message.schema);
+
+        if (rules != null) {
+            DataRule rule = rules.versions.get(message.version);
+            if (rule != null) { return rule; }
+            if (rules.any != null) { return rules.any; }
+        }
+
+        return fallback;
+    }
+
+    public List<String> validate(Message message) {
+        List<String> violations = new ArrayList<>(0);
+
+        if (message.session != null && !isUUID(message.session)) { violations.add("session: must be a UUID"); }
+        if (message.id != null && !isUUID(message.id)) { violations.add("id: must be a UUID"); }
+        if (message.timestamp < 1) { violations.add("timestamp: must be greater than or equal to 1"); }
+        if (message.version < 1) { violations.add("version: must be greater than or equal to 1"); }
+        if (message.schema == null || message.schema.isEmpty()) { violations.add("schema: may not be empty"); }
+        if (message.source == null || message.source.isEmpty()) { violations.add("source: may not be empty"); }
+        if (message.userAgent == null) { violations.add("userAgent: may not be null"); }
+
+        if (message.data == null) {
+            violations.add("data: may not be null");
+        } else {
+            DataRule rule = ruleFor(message);
+            if (rule != null) { rule.check(message.data, violations); }
+        }
+
+        return violations;
+    }
+
+    /** Violations for each message of a batch, in order. */
+    public List<List<String>> validate(List<Message> messages) {
+        if (messages.size() < PARALLEL_MIN) {
+            return messages.stream().map(this::validate).collect(Collectors.toList());
+        }
+
+        return IntStream.range(0, messages.size()).parallel().mapToObj(i -> validate(messages.get(i))).collect(Collectors.toList());
+    }
+
+    /** Whether s is a UUID in 8-4-4-4-12 hex digit form. */
+    static boolean isUUID(String s) {
+        if (s.length() != 36) { return false; }
+
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') { return false; }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
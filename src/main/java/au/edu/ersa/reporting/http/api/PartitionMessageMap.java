@@ -0,0 +1,18 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.util.Collections;
+import java.util.Map;
+
+import au.edu.ersa.reporting.kzk.PartitionMessages;
+
+public class PartitionMessageMap extends ReportingResponse {
+    public final Map<Integer,PartitionMessages> partitions;
+
+    public PartitionMessageMap(Map<Integer,PartitionMessages> map) {
+        if (map != null) {
+            this.partitions = Collections.unmodifiableMap(map);
+        } else {
+            this.partitions = Collections.emptyMap();
+        }
+    }
+}
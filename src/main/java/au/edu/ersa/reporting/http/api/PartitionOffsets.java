@@ -0,0 +1,15 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class PartitionOffsets {
+    // {"offsets":{"0":1234,"1":-10},"max_bytes":1048576}
+
+    public Map<Integer,Long> offsets = new HashMap<>();
+
+    @JsonProperty("max_bytes")
+    public int maxBytes;
+}
@@ -0,0 +1,20 @@
+package au.edu.ersa.reporting.http.api;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class SessionToken {
+    public SessionToken(String token, long expires) {
+        this.token = token;
+        this.expires = expires;
+    }
+
+    private final String token;
+    private final long expires;
+
+    @JsonProperty
+    public String getToken() { return token; }
+
+    /** Milliseconds since the epoch. */
+    @JsonProperty
+    public long getExpires() { return expires; }
+}
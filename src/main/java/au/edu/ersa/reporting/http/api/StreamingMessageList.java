@@ -0,0 +1,118 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import au.edu.ersa.reporting.http.Util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.MessageAndOffset;
+
+/**
+ * Writes the same document as {@link WrappedMessageList}, copying each payload straight from the fetched
+ * message set to the output stream instead of building a String per message. In lines mode it writes the
+ * messages alone, one per line, pushing each line to the client as it goes.
+ */
+public class StreamingMessageList extends ReportingResponse implements StreamingOutput {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final String topic;
+    private final int partition, maxBytes;
+    private final ByteBufferMessageSet messageSet;
+    private final boolean lines;
+
+    public StreamingMessageList(String topic, int partition, int maxBytes, ByteBufferMessageSet messageSet) {
+        this(topic, partition, maxBytes, messageSet, false);
+    }
+
+    public StreamingMessageList(String topic, int partition, int maxBytes, ByteBufferMessageSet messageSet, boolean lines) {
+        this.topic = topic;
+        this.partition = partition;
+        this.maxBytes = maxBytes;
+        this.messageSet = messageSet;
+        this.lines = lines;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try (JsonGenerator json = Util.JSON.getFactory().createGenerator(out)) {
+            // flush() must only hand buffered output to the stream, not push it to the client
+            json.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+            json.setRootValueSeparator(null);
+
+            if (!lines) {
+                json.writeStartObject();
+                json.writeObjectField("response", response);
+                json.writeArrayFieldStart("messages");
+            }
+
+            byte[] chunk = null;
+            int byteCount = 0;
+
+            for (MessageAndOffset msg : messageSet) {
+                ByteBuffer payload = msg.message().payload();
+
+                json.writeStartObject();
+                json.writeNumberField("partition", partition);
+                json.writeNumberField("offset", msg.offset());
+                json.writeStringField("topic", topic);
+                json.writeNumberField("next_offset", msg.nextOffset());
+                json.writeFieldName("message");
+
+                if (payload == null) {
+                    json.writeNull();
+                } else if (Util.isSmile(payload)) {
+                    byte[] smile = new byte[payload.remaining()];
+                    payload.get(smile);
+                    byte[] text = Util.smileToJSON(smile);
+
+                    json.writeRawValue("");
+                    json.flush();
+
+                    byteCount += smile.length;
+                    out.write(text);
+                } else {
+                    // Emit the separator, then append the payload bytes behind the generator's back.
+                    json.writeRawValue("");
+                    json.flush();
+
+                    byteCount += payload.remaining();
+
+                    if (payload.hasArray()) {
+                        out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                    } else {
+                        if (chunk == null) { chunk = new byte[CHUNK_SIZE]; }
+
+                        while (payload.hasRemaining()) {
+                            int length = Math.min(chunk.length, payload.remaining());
+                            payload.get(chunk, 0, length);
+                            out.write(chunk, 0, length);
+                        }
+                    }
+                }
+
+                json.writeEndObject();
+
+                if (lines) {
+                    json.writeRaw('\n');
+                    json.flush();
+                    out.flush();
+                }
+
+                if (byteCount >= maxBytes) { break; }
+            }
+
+            if (!lines) {
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+        }
+    }
+}
@@ -9,6 +9,9 @@ public class Topic {
     public Data summary;
     public Map<String,State> partition = new HashMap<>();
 
+    // Set when some partitions' offsets could not be retrieved in time.
+    public Boolean stale;
+
     public Topic() {}
 
     public Topic(String name) {
@@ -0,0 +1,40 @@
+package au.edu.ersa.reporting.http.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import au.edu.ersa.reporting.http.Util;
+import au.edu.ersa.reporting.kzk.WrappedMessage;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Writes one {@link WrappedMessage} per line, pushing each line to the client as it is written.
+ */
+public class WrappedMessageLines implements StreamingOutput {
+    private static final ObjectWriter WRITER = Util.JSON.writerFor(WrappedMessage.class);
+
+    private final List<WrappedMessage> messages;
+
+    public WrappedMessageLines(List<WrappedMessage> messages) {
+        this.messages = messages;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try (JsonGenerator json = Util.JSON.getFactory().createGenerator(out)) {
+            json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            json.setRootValueSeparator(null);
+
+            for (WrappedMessage message : messages) {
+                WRITER.writeValue(json, message);
+                json.writeRaw('\n');
+                json.flush();
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ public class ReportingResource {
     protected static final WebApplicationException NOT_FOUND = new WebApplicationException(HttpStatus.NOT_FOUND_404);
     protected static final WebApplicationException BAD_REQUEST = new WebApplicationException(HttpStatus.BAD_REQUEST_400);
     protected static final WebApplicationException CONFLICT = new WebApplicationException(HttpStatus.CONFLICT_409);
+    protected static final WebApplicationException SERVICE_UNAVAILABLE = new WebApplicationException(HttpStatus.SERVICE_UNAVAILABLE_503);
 
     protected static WebApplicationException BAD_REQUEST(String s) {
         return new WebApplicationException(s, HttpStatus.BAD_REQUEST_400);
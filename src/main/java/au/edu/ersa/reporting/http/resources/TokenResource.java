@@ -0,0 +1,58 @@
+package au.edu.ersa.reporting.http.resources;
+
+import io.dropwizard.auth.Auth;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiParam;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReporting;
+import au.edu.ersa.reporting.http.api.SessionToken;
+import au.edu.ersa.reporting.security.BasicAuth;
+import au.edu.ersa.reporting.security.SessionTokens;
+import au.edu.ersa.reporting.security.User;
+
+@Path(KafkaReporting.VERSION_PREFIX + "token")
+@Api(value = "token")
+@Produces(MediaType.APPLICATION_JSON)
+public class TokenResource extends ReportingResource {
+    private final static Logger LOG = LoggerFactory.getLogger(TokenResource.class);
+
+    private static final String BASIC_PREFIX = "Basic ";
+
+    private final BasicAuth auth;
+    private final SessionTokens tokens;
+
+    public TokenResource(BasicAuth auth, SessionTokens tokens) {
+        this.auth = auth;
+        this.tokens = tokens;
+    }
+
+    /** Only for Basic credentials: a token may not be used to renew itself indefinitely. */
+    @POST
+    public SessionToken issue(@Auth @ApiParam("ignore") User user, @HeaderParam(HttpHeaders.AUTHORIZATION) @ApiParam("ignore") String authorization) {
+        require(authorization != null && authorization.regionMatches(true, 0, BASIC_PREFIX, 0, BASIC_PREFIX.length()),
+                () -> LOG.warn("token requested by {} without Basic credentials", user.id));
+
+        // Taken afresh rather than from the auth cache, so that a new token reflects any change to the user.
+        User current = auth.getUser(user.id);
+        require(current != null, () -> LOG.warn("token requested for missing user {}", user.id));
+
+        long expires = System.currentTimeMillis() + tokens.getLifetimeMs();
+        String token = tokens.issue(current, expires);
+
+        if (token == null) { throw BAD_REQUEST("too many grants for a session token"); }
+
+        LOG.info("session token issued to {}", user.id);
+
+        return new SessionToken(token, expires);
+    }
+}
@@ -0,0 +1,124 @@
+package au.edu.ersa.reporting.http.resources;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.Util;
+import au.edu.ersa.reporting.kzk.Tailers;
+import au.edu.ersa.reporting.kzk.WrappedMessage;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * One server-sent event connection, fed by a shared tailer per partition. Each event id carries the next
+ * offset of every partition in the stream ("0:120,1:98"), so Last-Event-ID resumes exactly.
+ */
+class TopicEventStream implements Tailers.Listener {
+    private final static Logger LOG = LoggerFactory.getLogger(TopicEventStream.class);
+
+    private static final long HEARTBEAT_MS = 15000;
+
+    private static final Splitter POSITION_SPLITTER = Splitter.on(',').omitEmptyStrings().trimResults();
+    private static final Splitter.MapSplitter ID_SPLITTER = POSITION_SPLITTER.withKeyValueSeparator(':');
+    private static final Joiner.MapJoiner ID_JOINER = Joiner.on(',').withKeyValueSeparator(":");
+
+    private final EventOutput output = new EventOutput();
+    private final Map<Integer,Long> positions;
+    private final List<Tailers.Subscription> subscriptions = new ArrayList<>();
+
+    private long lastWrite = System.currentTimeMillis();
+
+    TopicEventStream(Map<Integer,Long> positions) {
+        this.positions = new TreeMap<>(positions);
+    }
+
+    EventOutput getOutput() { return output; }
+
+    void subscribe(Tailers tailers, String topic) {
+        synchronized (this) {
+            for (Map.Entry<Integer,Long> position : positions.entrySet()) {
+                subscriptions.add(tailers.subscribe(topic, position.getKey(), position.getValue(), this));
+            }
+        }
+    }
+
+    /** Parses a Last-Event-ID value; returns an empty map if it is absent or malformed. */
+    static Map<Integer,Long> parseId(String id) {
+        Map<Integer,Long> positions = new TreeMap<>();
+
+        if (id == null) { return positions; }
+
+        try {
+            for (Map.Entry<String,String> entry : ID_SPLITTER.split(id).entrySet()) {
+                positions.put(Integer.parseInt(entry.getKey()), Long.parseLong(entry.getValue()));
+            }
+        } catch (IllegalArgumentException e) {
+            LOG.debug("ignoring malformed event id: {}", id);
+            positions.clear();
+        }
+
+        return positions;
+    }
+
+    @Override
+    public synchronized boolean onMessages(int partition, List<WrappedMessage> messages) {
+        try {
+            for (WrappedMessage message : messages) {
+                positions.put(partition, message.nextOffset);
+
+                output.write(new OutboundEvent.Builder().
+                        id(ID_JOINER.join(positions)).
+                        name("message").
+                        mediaType(MediaType.APPLICATION_JSON_TYPE).
+                        data(String.class, Util.toJSON(message)).
+                        build());
+            }
+
+            lastWrite = System.currentTimeMillis();
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean onIdle() {
+        if (output.isClosed()) {
+            close();
+            return false;
+        }
+
+        if (System.currentTimeMillis() - lastWrite < HEARTBEAT_MS) { return true; }
+
+        try {
+            output.write(new OutboundEvent.Builder().comment("").build());
+            lastWrite = System.currentTimeMillis();
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    private void close() {
+        subscriptions.forEach(Tailers.Subscription::cancel);
+
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOG.debug("error closing event stream", e);
+        }
+    }
+}
@@ -4,54 +4,100 @@ import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiParam;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
-import org.apache.kafka.clients.producer.RecordMetadata;
+import org.eclipse.jetty.http.HttpStatus;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import au.edu.ersa.reporting.http.KafkaReporting;
+import au.edu.ersa.reporting.http.MediaTypes;
+import au.edu.ersa.reporting.http.Util;
+import au.edu.ersa.reporting.http.api.IngestResult;
 import au.edu.ersa.reporting.http.api.Message;
+import au.edu.ersa.reporting.http.api.MessageReader;
+import au.edu.ersa.reporting.http.api.MessageValidator;
+import au.edu.ersa.reporting.http.api.PartitionMessageMap;
+import au.edu.ersa.reporting.http.api.PartitionOffsets;
+import au.edu.ersa.reporting.http.api.StreamingMessageList;
 import au.edu.ersa.reporting.http.api.Topic;
 import au.edu.ersa.reporting.http.api.TopicList;
-import au.edu.ersa.reporting.http.api.TopicMessageMap;
+import au.edu.ersa.reporting.http.api.WrappedMessageLines;
 import au.edu.ersa.reporting.http.api.WrappedMessageList;
+import au.edu.ersa.reporting.kzk.Deduplicator;
+import au.edu.ersa.reporting.kzk.Insertion;
 import au.edu.ersa.reporting.kzk.Kafka;
+import au.edu.ersa.reporting.kzk.PartitionMessages;
+import au.edu.ersa.reporting.kzk.Tailers;
+import au.edu.ersa.reporting.kzk.TimeIndex;
 import au.edu.ersa.reporting.kzk.WrappedMessage;
 import au.edu.ersa.reporting.security.User;
 
 import com.google.common.base.Joiner;
 
+import kafka.javaapi.message.ByteBufferMessageSet;
+
 @Path(KafkaReporting.VERSION_PREFIX + "topic")
 @Api(value = "topic")
-@Consumes(MediaType.APPLICATION_JSON)
-@Produces(MediaType.APPLICATION_JSON)
+@Consumes({ MediaType.APPLICATION_JSON, MediaTypes.SMILE, MediaTypes.CBOR })
+@Produces({ MediaType.APPLICATION_JSON, MediaTypes.SMILE, MediaTypes.CBOR })
 public class TopicResource extends ReportingResource {
     private final static Logger LOG = LoggerFactory.getLogger(TopicResource.class);
 
+    private static final long LONG_POLL_GRACE_MS = 5000;
+    private static final int MAX_SEEK_FETCHES = 16;
+    private static final long INSERT_TIMEOUT_S = 30;
+    static final int VALIDATION_BATCH = 1024;
+
+    /** Where a time-filtered fetch got to, so the client can carry on from there. */
+    public static final String NEXT_OFFSET_HEADER = "X-Next-Offset";
+
     private final Kafka kafka;
+    private final Executor longPolls;
+    private final Tailers tailers;
+    private final TimeIndex timeIndex;
+    private final Deduplicator dedup;
+    private final MessageValidator validator;
 
-    public TopicResource(Kafka kafka) {
+    public TopicResource(Kafka kafka, Executor longPolls, Tailers tailers, TimeIndex timeIndex, Deduplicator dedup, MessageValidator validator) {
         this.kafka = kafka;
+        this.longPolls = longPolls;
+        this.tailers = tailers;
+        this.timeIndex = timeIndex;
+        this.dedup = dedup;
+        this.validator = validator;
     }
 
     @GET
@@ -75,72 +121,193 @@ public class TopicResource extends ReportingResource {
 
     @GET
     @Path("/{id}/{partition}/{offset}")
-    public WrappedMessageList get(@Auth @ApiParam("ignore") User user, @PathParam("id") String id, @PathParam("partition") int partition, @PathParam("offset") long offset, @QueryParam("maxBytes") @DefaultValue("0") int maxBytes) {
+    @Produces({ MediaType.APPLICATION_JSON, MediaTypes.NDJSON, MediaTypes.SMILE, MediaTypes.CBOR })
+    public void get(@Auth @ApiParam("ignore") User user, @Context HttpHeaders headers, @PathParam("id") String id, @PathParam("partition") int partition, @PathParam("offset") long offset,
+            @QueryParam("maxBytes") @DefaultValue("0") int maxBytes, @QueryParam("stream") @DefaultValue("false") boolean stream,
+            @QueryParam("maxWaitMs") @DefaultValue("0") int maxWaitMs, @QueryParam("minBytes") @DefaultValue("0") int minBytes,
+            @QueryParam("since") @DefaultValue("0") long since, @QueryParam("until") @DefaultValue("0") long until,
+            @Suspended AsyncResponse response) {
         require(user.canRead(id), () -> LOG.warn("denied read from {} by {}", id, user.id));
 
-        List<WrappedMessage> messages = maxBytes <= 0 ? kafka.fetch(id, partition, offset) : kafka.fetch(id, partition, offset, maxBytes);
+        // Time-filtered results are decoded and filtered, so they can't be streamed raw.
+        if (stream && (since > 0 || until > 0)) { throw BAD_REQUEST("stream cannot be combined with since or until"); }
 
-        if (messages != null) {
-            return new WrappedMessageList(messages);
-        } else {
+        MediaType type = preferredType(headers);
+
+        if (maxWaitMs <= 0) {
+            response.resume(fetch(id, partition, offset, maxBytes, stream, 0, 0, since, until, type));
+            return;
+        }
+
+        response.setTimeout(maxWaitMs + LONG_POLL_GRACE_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            longPolls.execute(() -> {
+                try {
+                    response.resume(fetch(id, partition, offset, maxBytes, stream, maxWaitMs, minBytes, since, until, type));
+                } catch (Exception e) {
+                    response.resume(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("long poll rejected: {}/{} by {}", id, partition, user.id);
+            throw SERVICE_UNAVAILABLE;
+        }
+    }
+
+    private static final List<MediaType> MESSAGE_TYPES = Arrays.asList(MediaType.APPLICATION_JSON_TYPE, MediaTypes.NDJSON_TYPE, MediaTypes.SMILE_TYPE, MediaTypes.CBOR_TYPE);
+
+    /** The first of the message formats the client accepts, JSON if it takes anything. */
+    private static MediaType preferredType(HttpHeaders headers) {
+        for (MediaType accepted : headers.getAcceptableMediaTypes()) {
+            if (accepted.isWildcardType()) { return MediaType.APPLICATION_JSON_TYPE; }
+
+            for (MediaType type : MESSAGE_TYPES) {
+                if (accepted.isCompatible(type)) { return type; }
+            }
+        }
+
+        return MediaType.APPLICATION_JSON_TYPE;
+    }
+
+    private static Response messages(List<WrappedMessage> messages, MediaType type) {
+        if (messages == null) {
             throw NOT_FOUND;
+        } else if (type.equals(MediaTypes.NDJSON_TYPE)) {
+            return Response.ok(new WrappedMessageLines(messages), type).build();
+        } else {
+            return Response.ok(new WrappedMessageList(messages), type).build();
         }
     }
 
-    private static void validate(Collection<Message> messages) {
-        boolean valid = true;
+    private Response fetch(String id, int partition, long offset, int maxBytes, boolean stream, int maxWaitMs, int minBytes, long since, long until, MediaType type) {
+        int limit = maxBytes <= 0 ? Kafka.MAX_MESSAGE_SIZE : maxBytes;
+
+        if (since > 0 || until > 0) {
+            Between between = fetchBetween(id, partition, offset, limit, maxWaitMs, minBytes, since, until);
+
+            if (between == null) { throw NOT_FOUND; }
+
+            return Response.fromResponse(messages(between.messages, type)).header(NEXT_OFFSET_HEADER, between.nextOffset).build();
+        }
+
+        boolean lines = type.equals(MediaTypes.NDJSON_TYPE);
 
-        for (Message message : messages) {
-            List<String> violations = message.validate();
-            if (!violations.isEmpty()) {
-                valid = false;
-                LOG.warn("invalid message: " + message.id + " / " + violations);
+        // Raw payloads can only be spliced into text; binary formats take the decoded path.
+        if (stream && (lines || type.equals(MediaType.APPLICATION_JSON_TYPE))) {
+            ByteBufferMessageSet messageSet = kafka.fetchMessageSet(id, partition, offset, limit, maxWaitMs, minBytes);
+
+            if (messageSet != null) {
+                return Response.ok(new StreamingMessageList(id, partition, limit, messageSet, lines), type).build();
+            } else {
+                throw NOT_FOUND;
             }
         }
 
-        if (!valid) {
-            throw BAD_REQUEST;
+        return messages(kafka.fetch(id, partition, offset, limit, maxWaitMs, minBytes), type);
+    }
+
+    private static final class Between {
+        final List<WrappedMessage> messages;
+        final Long nextOffset;
+
+        Between(List<WrappedMessage> messages, Long nextOffset) {
+            this.messages = messages;
+            this.nextOffset = nextOffset;
         }
     }
 
-    private static void handleFutures(Map<String,Future<RecordMetadata>> futures) {
-        ForkJoinPool pool = new ForkJoinPool(Math.min(futures.size(), 16));
-        List<String> failedMessages = null;
-        Exception outrightFailure = null;
+    /**
+     * Starts from the indexed offset just before since (or the given offset, if that is further on) and
+     * drops messages outside the time range. Batches wholly before since are skipped, a bounded number
+     * of times; either way the result carries the offset after the last message looked at, so a client
+     * that got nothing back can carry on from there.
+     */
+    private Between fetchBetween(String id, int partition, long offset, int limit, int maxWaitMs, int minBytes, long since, long until) {
+        long start = offset;
+
+        if (since > 0) {
+            long indexed = timeIndex.seek(id, partition, since);
+            start = offset < 0 ? indexed : Math.max(offset, indexed);
+        }
 
-        try {
-            failedMessages = pool.submit(() -> {
-                return futures.entrySet().stream().parallel().map(entry -> {
-                    try {
-                        entry.getValue().get(30, TimeUnit.SECONDS);
-                        return null;
-                    } catch (Exception e) {
-                        LOG.warn("message insertion error: {}", e);
-                        return entry.getKey();
-                    }
-                }).filter(x -> x != null).collect(Collectors.toList());
-            }).get();
-        } catch (Exception e) {
-            outrightFailure = e;
-        } finally {
-            pool.shutdown();
+        for (int i = 0; i < MAX_SEEK_FETCHES; i++) {
+            List<WrappedMessage> messages = kafka.fetch(id, partition, start, limit, maxWaitMs, minBytes);
+
+            if (messages == null) { return null; }
+            if (messages.isEmpty()) { return new Between(messages, start < 0 ? null : start); }
+
+            List<WrappedMessage> filtered = TimeIndex.filter(messages, since, until);
+            WrappedMessage last = messages.get(messages.size() - 1);
+
+            if (!filtered.isEmpty() || TimeIndex.timestampOf(last) >= since) {
+                return new Between(filtered, last.nextOffset);
+            }
+
+            start = last.nextOffset;
         }
 
-        if (outrightFailure != null) {
-            LOG.error("failed to retrieve message insertion futures!", outrightFailure);
-            throw INTERNAL_SERVER_ERROR;
-        } else if (!failedMessages.isEmpty()) {
-            String messages = Joiner.on(' ').join(failedMessages);
-            throw BAD_REQUEST(messages);
+        return new Between(Collections.emptyList(), start);
+    }
+
+    @POST
+    @Path("/{id}/fetch")
+    public PartitionMessageMap fetchPartitions(@Auth @ApiParam("ignore") User user, @PathParam("id") String id, PartitionOffsets request) {
+        require(user.canRead(id), () -> LOG.warn("denied read from {} by {}", id, user.id));
+
+        if (request == null || request.offsets == null || request.offsets.isEmpty()) {
+            throw BAD_REQUEST;
+        }
+
+        Map<Integer,PartitionMessages> partitions = kafka.fetch(id, request.offsets, request.maxBytes <= 0 ? Kafka.MAX_MESSAGE_SIZE : request.maxBytes);
+
+        if (partitions != null) {
+            return new PartitionMessageMap(partitions);
+        } else {
+            throw NOT_FOUND;
         }
     }
 
-    private void populateMessages(Collection<Message> messages, HttpServletRequest request) {
-        populateMessages(messages, System.currentTimeMillis(), request);
+    @GET
+    @Path("/{id}/stream")
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput stream(@Auth @ApiParam("ignore") User user, @PathParam("id") String id, @QueryParam("partition") List<Integer> partitions, @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId) {
+        require(user.canRead(id), () -> LOG.warn("denied read from {} by {}", id, user.id));
+
+        Topic topic = kafka.getTopic(id);
+
+        if (topic == null) { throw NOT_FOUND; }
+
+        Map<Integer,Long> resume = TopicEventStream.parseId(lastEventId);
+        Map<Integer,Long> positions = new HashMap<>();
+
+        for (Map.Entry<String,Topic.State> entry : topic.partition.entrySet()) {
+            int partition = Integer.parseInt(entry.getKey());
+
+            if (partitions.isEmpty() || partitions.contains(partition)) {
+                Long position = resume.get(partition);
+
+                // A stale topic may be missing its latest offsets, and 0 would replay the whole partition.
+                if (position == null && Boolean.TRUE.equals(topic.stale)) {
+                    LOG.warn("offsets for {} unavailable; refusing stream for {}", id, user.id);
+                    throw SERVICE_UNAVAILABLE;
+                }
+
+                positions.put(partition, position != null ? position : entry.getValue().latestOffset);
+            }
+        }
+
+        if (positions.isEmpty()) { throw NOT_FOUND; }
+
+        TopicEventStream stream = new TopicEventStream(positions);
+        stream.subscribe(tailers, id);
+
+        return stream.getOutput();
     }
 
-    private void populateMessages(Collection<Message> messages, long timestamp, HttpServletRequest request)  {
-        messages.stream().forEach(message -> populateMessage(message, timestamp, request));
+    private void failed(String topic, Message message) {
+        // A flagged duplicate's id belongs to the message it duplicates.
+        if (dedup.isEnabled(topic) && !Boolean.TRUE.equals(message.duplicate)) { dedup.failed(topic, message.id); }
     }
 
     private void populateMessage(Message message, long timestamp, HttpServletRequest request) {
@@ -149,46 +316,174 @@ public class TopicResource extends ReportingResource {
 
         String userAgent = request.getHeader(HttpHeaders.USER_AGENT);
         message.userAgent = userAgent != null ? userAgent : "";
+
+        // Only the dedup filter may flag a message; Jackson 2.5 has no read-only properties.
+        message.duplicate = null;
     }
 
     @POST
     @Path("/{id}")
-    public void post(@Auth @ApiParam("ignore") User user, @Context HttpServletRequest request, @PathParam("id") String id, @QueryParam("sync") @DefaultValue("true") boolean sync, List<Message> messages) {
-        messages.stream().forEach(message -> {
-            require(user.canWrite(id), () -> LOG.warn("denied write to {} by {}", id, user.id));
-        });
+    public void post(@Auth @ApiParam("ignore") User user, @Context HttpServletRequest request, @Context HttpHeaders headers, @PathParam("id") String id, @QueryParam("sync") @DefaultValue("true") boolean sync, InputStream body,
+            @Suspended AsyncResponse response) {
+        require(user.canWrite(id), () -> LOG.warn("denied write to {} by {}", id, user.id));
+
+        try (MessageReader reader = MessageReader.forTopic(Util.mapperFor(headers.getMediaType()), body, id)) {
+            ingest(reader, user, request, sync, response);
+        } catch (IOException e) {
+            LOG.warn("unreadable message batch for {} from {}: {}", id, user.id, e.getMessage());
+            throw BAD_REQUEST;
+        }
+    }
 
-        populateMessages(messages, request);
+    @POST
+    @Path("/{id}")
+    @Consumes(MediaTypes.NDJSON)
+    public void postLines(@Auth @ApiParam("ignore") User user, @Context HttpServletRequest request, @PathParam("id") String id, @QueryParam("sync") @DefaultValue("true") boolean sync, InputStream body,
+            @Suspended AsyncResponse response) {
+        require(user.canWrite(id), () -> LOG.warn("denied write to {} by {}", id, user.id));
+
+        try (MessageReader reader = MessageReader.forLines(body, id)) {
+            ingest(reader, user, request, sync, response);
+        } catch (IOException e) {
+            LOG.warn("unreadable message lines for {} from {}: {}", id, user.id, e.getMessage());
+            throw BAD_REQUEST;
+        }
+    }
 
-        validate(messages);
+    @POST
+    public void post(@Auth @ApiParam("ignore") User user, @Context HttpServletRequest request, @Context HttpHeaders headers, @QueryParam("sync") @DefaultValue("true") boolean sync, InputStream body,
+            @Suspended AsyncResponse response) {
+        try (MessageReader reader = MessageReader.forTopicMap(Util.mapperFor(headers.getMediaType()), body)) {
+            ingest(reader, user, request, sync, response);
+        } catch (IOException e) {
+            LOG.warn("unreadable message batch from {}: {}", user.id, e.getMessage());
+            throw BAD_REQUEST;
+        }
+    }
 
-        Map<String,Future<RecordMetadata>> futures = kafka.insert(id, messages);
+    /**
+     * What an ingest request has done so far. Written by the thread reading the request, and read by the
+     * completion handler once the request has been read and every send has completed.
+     */
+    private static final class Ingested {
+        int taken = 0;
+        List<String> rejected = Collections.emptyList();
+        int status = 0;
+        String error;
+
+        boolean isStopped() { return status != 0; }
+
+        void stop(int status, String error) {
+            this.status = status;
+            this.error = error;
+        }
 
-        if (sync) {
-            handleFutures(futures);
+        /** 204 if everything was taken, an error if nothing was, or else which part of the batch was. */
+        void resume(AsyncResponse response, List<String> failed) {
+            if (!isStopped() && failed.isEmpty()) {
+                response.resume(Response.noContent().build());
+            } else if (taken == failed.size()) {
+                String message = isStopped() ? error : Joiner.on(' ').join(failed);
+                response.resume(new WebApplicationException(message, isStopped() ? status : HttpStatus.BAD_REQUEST_400));
+            } else {
+                response.resume(Response.status(IngestResult.STATUS).entity(new IngestResult(taken, failed, rejected, error)).build());
+            }
         }
     }
 
-    @POST
-    public void post(@Auth @ApiParam("ignore") User user, @Context HttpServletRequest request, @QueryParam("sync") @DefaultValue("true") boolean sync, TopicMessageMap map) {
-        for (Map.Entry<String,List<Message>> entry : map.messages.entrySet()) {
-            String topic = entry.getKey();
-            List<Message> messages = entry.getValue();
+    /**
+     * Validates a run of messages together and, only if every one of them is valid, inserts them in order.
+     * Otherwise nothing from the run is sent and the batch stops there.
+     */
+    private boolean insert(List<String> topics, List<Message> run, Insertion insertion, Ingested ingested) {
+        List<List<String>> violations = validator.validate(run);
+        List<String> invalid = new ArrayList<>();
+
+        for (int i = 0; i < run.size(); i++) {
+            if (!violations.get(i).isEmpty()) {
+                LOG.warn("invalid message: " + run.get(i).id + " / " + violations.get(i));
+                invalid.add(String.valueOf(run.get(i).id));
+            }
+        }
 
-            messages.stream().forEach(message -> {
-                require(user.canWrite(topic), () -> LOG.warn("denied write to {} by {}", topic, user.id));
-            });
+        if (!invalid.isEmpty()) {
+            ingested.rejected = invalid;
+            ingested.stop(HttpStatus.BAD_REQUEST_400, Joiner.on(' ').join(invalid));
+            return false;
         }
 
-        map.messages.values().stream().forEach(messages -> {
-            populateMessages(messages, request);
-            validate(messages);
-        });
+        for (int i = 0; i < run.size(); i++) {
+            String topic = topics.get(i);
+            Message message = run.get(i);
+
+            if (dedup.isEnabled(topic) && dedup.isDuplicate(topic, message.id)) {
+                if (dedup.getMode() == Deduplicator.Mode.FLAG) {
+                    message.duplicate = true;
+                    kafka.insert(topic, message, insertion);
+                }
+            } else {
+                kafka.insert(topic, message, insertion);
+            }
+        }
+
+        ingested.taken += run.size();
+        return true;
+    }
+
+    /**
+     * Sends the request's messages as they are read, a bounded run at a time, so that memory use does not
+     * depend on the size of the batch. Each topic is checked the first time it appears. The batch stops
+     * at an invalid run, a topic the user may not write to or a parse error, with what came before it
+     * already sent; the response then says how much of the batch was taken.
+     */
+    private void ingest(MessageReader reader, User user, HttpServletRequest request, boolean sync, AsyncResponse response) {
+        long timestamp = System.currentTimeMillis();
+        Set<String> permitted = new HashSet<>();
+        Ingested ingested = new Ingested();
+
+        if (sync) { response.setTimeout(INSERT_TIMEOUT_S, TimeUnit.SECONDS); }
 
-        Map<String,Future<RecordMetadata>> futures = kafka.insert(map);
+        Insertion insertion = new Insertion(failed -> {
+            if (sync) { ingested.resume(response, failed); }
+        }, this::failed);
 
-        if (sync) {
-            handleFutures(futures);
+        List<String> topics = new ArrayList<>();
+        List<Message> run = new ArrayList<>();
+
+        try {
+            Message message;
+
+            while ((message = reader.next()) != null) {
+                String topic = reader.getTopic();
+
+                if (permitted.add(topic) && !user.canWrite(topic)) {
+                    LOG.warn("denied write to {} by {}", topic, user.id);
+                    ingested.stop(HttpStatus.FORBIDDEN_403, "write to " + topic + " denied");
+                    break;
+                }
+
+                populateMessage(message, timestamp, request);
+
+                topics.add(topic);
+                run.add(message);
+
+                if (run.size() >= VALIDATION_BATCH) {
+                    if (!insert(topics, run, insertion, ingested)) { break; }
+
+                    topics.clear();
+                    run.clear();
+                }
+            }
+
+            if (!ingested.isStopped()) { insert(topics, run, insertion, ingested); }
+        } catch (IOException e) {
+            LOG.warn("unreadable message batch from {} after {} messages: {}", user.id, ingested.taken, e.getMessage());
+            ingested.stop(HttpStatus.BAD_REQUEST_400, "unreadable message batch: " + e.getMessage());
+        } finally {
+            insertion.close();
         }
+
+        // In sync mode the insertion resumes the response once every send has completed.
+        if (!sync) { ingested.resume(response, Collections.emptyList()); }
     }
 }
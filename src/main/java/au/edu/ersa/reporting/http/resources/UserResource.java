@@ -4,6 +4,7 @@ import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiParam;
 
+import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -14,6 +15,7 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 
 import org.slf4j.Logger;
@@ -76,11 +78,15 @@ public class UserResource extends ReportingResource {
     }
 
     @GET
-    public UserList list(@Auth @ApiParam("ignore") User user) {
+    public UserList list(@Auth @ApiParam("ignore") User user, @QueryParam("id") List<String> ids) {
         require(user.admin, () -> LOG.warn("not admin: " + user.id));
 
         LOG.info("user listing by {}", user.id);
 
+        if (ids != null && !ids.isEmpty()) {
+            return new UserList(auth.getUsers(ids).values().stream().map(SANITISE).map(User::stripUserFromACLs).collect(Collectors.toList()));
+        }
+
         return new UserList(auth.getAllUsers().stream().map(SANITISE).collect(Collectors.toList()));
     }
 
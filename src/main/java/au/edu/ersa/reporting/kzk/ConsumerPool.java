@@ -0,0 +1,248 @@
+package au.edu.ersa.reporting.kzk;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.ConsumerConfig;
+import au.edu.ersa.reporting.http.api.Broker;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Iterables;
+
+import kafka.api.FetchRequest;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.OffsetRequest;
+import kafka.javaapi.OffsetResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+
+/**
+ * Bounded pool of SimpleConsumer connections, keyed by broker host:port. Long polls draw on a separate
+ * budget of connections, so that however many are waiting there are always connections for ordinary
+ * fetches and offset queries.
+ */
+public class ConsumerPool implements Managed {
+    private final static Logger LOG = LoggerFactory.getLogger(ConsumerPool.class);
+
+    private final String me = toString().replace('@', '-');
+
+    /**
+     * Half the broker's default connections.max.idle.ms. Idle connections are retired before the broker
+     * closes them, so a pooled socket is never one the broker has dropped. There is no probe on checkout:
+     * SimpleConsumer reconnects and retries once by itself after an I/O error, and a request that still
+     * fails discards its connection.
+     */
+    private static final long BROKER_IDLE_MS = 5 * 60 * 1000;
+
+    private final int maxPerBroker, maxLongPollsPerBroker, soTimeout, bufferSize;
+    private final long idleTimeout, checkoutTimeout;
+
+    private final ConcurrentMap<String,BrokerPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,BrokerPool> longPolls = new ConcurrentHashMap<>();
+
+    private final Timer checkoutWait;
+    private final Meter created, discarded;
+
+    private ScheduledExecutorService evictor;
+
+    public ConsumerPool(ConsumerConfig config, MetricRegistry metrics) {
+        this.maxPerBroker = config.getMaxPerBroker();
+        this.maxLongPollsPerBroker = config.getMaxLongPollsPerBroker();
+        this.soTimeout = (int)config.getSoTimeout().toMilliseconds();
+        this.bufferSize = (int)config.getBufferSize().toBytes();
+        this.idleTimeout = Math.min(config.getIdleTimeout().toMilliseconds(), BROKER_IDLE_MS);
+        this.checkoutTimeout = config.getCheckoutTimeout().toMilliseconds();
+
+        checkoutWait = metrics.timer(MetricRegistry.name(ConsumerPool.class, "checkout-wait"));
+        created = metrics.meter(MetricRegistry.name(ConsumerPool.class, "created"));
+        discarded = metrics.meter(MetricRegistry.name(ConsumerPool.class, "discarded"));
+
+        metrics.register(MetricRegistry.name(ConsumerPool.class, "leased"), (Gauge<Integer>)() -> leased(pools));
+        metrics.register(MetricRegistry.name(ConsumerPool.class, "idle"), (Gauge<Integer>)() -> pools.values().stream().mapToInt(p -> p.idle.size()).sum());
+        metrics.register(MetricRegistry.name(ConsumerPool.class, "long-poll-leased"), (Gauge<Integer>)() -> leased(longPolls));
+        metrics.register(MetricRegistry.name(ConsumerPool.class, "long-poll-idle"), (Gauge<Integer>)() -> longPolls.values().stream().mapToInt(p -> p.idle.size()).sum());
+    }
+
+    public int getSoTimeout() { return soTimeout; }
+
+    private static int leased(ConcurrentMap<String,BrokerPool> pools) {
+        return pools.values().stream().mapToInt(p -> p.size - p.permits.availablePermits()).sum();
+    }
+
+    private static class Entry {
+        final SimpleConsumer consumer;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Entry(SimpleConsumer consumer) {
+            this.consumer = consumer;
+        }
+    }
+
+    private class BrokerPool {
+        final String host;
+        final int port;
+        final int size;
+        final Semaphore permits;
+        final Deque<Entry> idle = new ConcurrentLinkedDeque<>();
+
+        BrokerPool(String host, int port, int size) {
+            this.host = host;
+            this.port = port;
+            this.size = size;
+            this.permits = new Semaphore(size, true);
+        }
+
+        @Override
+        public String toString() { return host + ":" + port; }
+    }
+
+    /**
+     * A checked-out connection. Closing the lease returns the connection to the pool, or discards it if a
+     * request on it failed.
+     */
+    public class Lease implements AutoCloseable {
+        private final BrokerPool pool;
+        private final Entry entry;
+        private boolean broken = false;
+
+        private Lease(BrokerPool pool, Entry entry) {
+            this.pool = pool;
+            this.entry = entry;
+        }
+
+        public FetchResponse fetch(FetchRequest request) {
+            try {
+                return entry.consumer.fetch(request);
+            } catch (RuntimeException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        public OffsetResponse getOffsetsBefore(OffsetRequest request) {
+            try {
+                return entry.consumer.getOffsetsBefore(request);
+            } catch (RuntimeException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (broken) {
+                discard(entry);
+            } else {
+                entry.lastUsed = System.currentTimeMillis();
+                pool.idle.push(entry);
+            }
+
+            pool.permits.release();
+        }
+    }
+
+    public Lease checkout(Broker broker) {
+        return checkout(pools.computeIfAbsent(broker.host + ":" + broker.port, k -> new BrokerPool(broker.host, broker.port, maxPerBroker)));
+    }
+
+    /** A connection for a fetch the broker may hold open, from the long-poll budget. */
+    public Lease checkoutLongPoll(Broker broker) {
+        return checkout(longPolls.computeIfAbsent(broker.host + ":" + broker.port, k -> new BrokerPool(broker.host, broker.port, maxLongPollsPerBroker)));
+    }
+
+    private Lease checkout(BrokerPool pool) {
+        Timer.Context timer = checkoutWait.time();
+
+        try {
+            if (!pool.permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("consumer pool exhausted: " + pool);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            timer.stop();
+        }
+
+        try {
+            Entry entry;
+
+            while ((entry = pool.idle.poll()) != null) {
+                if (isExpired(entry, System.currentTimeMillis())) {
+                    discard(entry);
+                } else {
+                    return new Lease(pool, entry);
+                }
+            }
+
+            created.mark();
+            return new Lease(pool, new Entry(new SimpleConsumer(pool.host, pool.port, soTimeout, bufferSize, me)));
+        } catch (RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.lastUsed > idleTimeout;
+    }
+
+    private void discard(Entry entry) {
+        discarded.mark();
+
+        try {
+            entry.consumer.close();
+        } catch (Exception e) {
+            LOG.debug("error closing consumer", e);
+        }
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+
+        for (BrokerPool pool : Iterables.concat(pools.values(), longPolls.values())) {
+            for (Entry entry : pool.idle) {
+                if (isExpired(entry, now) && pool.idle.removeFirstOccurrence(entry)) {
+                    discard(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, me + "-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        evictor.shutdownNow();
+
+        for (BrokerPool pool : Iterables.concat(pools.values(), longPolls.values())) {
+            Entry entry;
+            while ((entry = pool.idle.poll()) != null) {
+                discard(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.DedupConfig;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Remembers the ids of recently sent messages in a fixed amount of memory. Ids are kept as pairs of
+ * longs in open-addressed tables, two generations per shard: the current one takes new ids and the
+ * previous one is still consulted, and every half window (or sooner, if the current one fills up) the
+ * previous one is cleared and the two swap. An id is therefore remembered for between half and the whole
+ * of the window.
+ */
+public class Deduplicator {
+    private final static Logger LOG = LoggerFactory.getLogger(Deduplicator.class);
+
+    private static final String ALL_TOPICS = "*";
+    private static final int SHARDS = 16;
+    private static final int BYTES_PER_SLOT = 16;
+    private static final long TOPIC_MIX = 0x9E3779B97F4A7C15L;
+
+    public enum Mode { DROP, FLAG }
+
+    private final class Shard {
+        private long[] current, previous;
+        private int size;
+        private long rotated = System.currentTimeMillis();
+
+        Shard(int slots) {
+            current = new long[slots * 2];
+            previous = new long[slots * 2];
+        }
+
+        /** Adds the id unless it is already known, in which case returns true. */
+        synchronized boolean claim(long msb, long lsb) {
+            rotateIfDue();
+
+            if (contains(current, msb, lsb) || contains(previous, msb, lsb)) { return true; }
+
+            if (size >= capacity) {
+                earlyRotations.mark();
+                rotate();
+            }
+
+            int mask = current.length / 2 - 1;
+            int slot = slot(msb, lsb) & mask;
+
+            while (current[slot * 2] != 0 || current[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            current[slot * 2] = msb;
+            current[slot * 2 + 1] = lsb;
+            size++;
+
+            return false;
+        }
+
+        synchronized void remove(long msb, long lsb) {
+            if (remove(current, msb, lsb)) { size--; }
+            remove(previous, msb, lsb);
+        }
+
+        private boolean contains(long[] table, long msb, long lsb) {
+            int mask = table.length / 2 - 1;
+            int slot = slot(msb, lsb) & mask;
+
+            while (table[slot * 2] != 0 || table[slot * 2 + 1] != 0) {
+                if (table[slot * 2] == msb && table[slot * 2 + 1] == lsb) { return true; }
+                slot = (slot + 1) & mask;
+            }
+
+            return false;
+        }
+
+        private boolean remove(long[] table, long msb, long lsb) {
+            int mask = table.length / 2 - 1;
+            int slot = slot(msb, lsb) & mask;
+
+            while (table[slot * 2] != msb || table[slot * 2 + 1] != lsb) {
+                if (table[slot * 2] == 0 && table[slot * 2 + 1] == 0) { return false; }
+                slot = (slot + 1) & mask;
+            }
+
+            // Close the gap by moving back later ids of the run that may sit there, so lookups still reach them.
+            int hole = slot;
+
+            for (int next = (hole + 1) & mask; table[next * 2] != 0 || table[next * 2 + 1] != 0; next = (next + 1) & mask) {
+                int home = slot(table[next * 2], table[next * 2 + 1]) & mask;
+
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole * 2] = table[next * 2];
+                    table[hole * 2 + 1] = table[next * 2 + 1];
+                    hole = next;
+                }
+            }
+
+            table[hole * 2] = 0;
+            table[hole * 2 + 1] = 0;
+
+            return true;
+        }
+
+        private void rotateIfDue() {
+            if (System.currentTimeMillis() - rotated >= halfWindowMs) { rotate(); }
+        }
+
+        private void rotate() {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0);
+
+            previous = current;
+            current = cleared;
+            size = 0;
+            rotated = System.currentTimeMillis();
+        }
+    }
+
+    private final Set<String> topics;
+    private final Mode mode;
+    private final long halfWindowMs;
+    private final int capacity;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final Meter checked, duplicates, earlyRotations;
+
+    public Deduplicator(DedupConfig config, MetricRegistry metrics) {
+        this.topics = new HashSet<>(config.getTopics());
+        this.mode = Mode.valueOf(config.getMode().toUpperCase());
+        this.halfWindowMs = config.getWindow().toMilliseconds() / 2;
+
+        // Two generations per shard, each at most half full.
+        int slots = Math.max(2, Integer.highestOneBit((int)Math.min(Integer.MAX_VALUE, config.getMaxSize().toBytes() / (SHARDS * 2 * BYTES_PER_SLOT))));
+        this.capacity = slots / 2;
+
+        if (!topics.isEmpty()) {
+            for (int i = 0; i < SHARDS; i++) {
+                shards[i] = new Shard(slots);
+            }
+
+            LOG.info("remembering up to {} message ids per half window of {}", (long)capacity * SHARDS, config.getWindow());
+        }
+
+        this.checked = metrics.meter(MetricRegistry.name(Deduplicator.class, "checked"));
+        this.duplicates = metrics.meter(MetricRegistry.name(Deduplicator.class, "duplicates"));
+        this.earlyRotations = metrics.meter(MetricRegistry.name(Deduplicator.class, "early-rotations"));
+    }
+
+    public boolean isEnabled(String topic) {
+        return !topics.isEmpty() && (topics.contains(ALL_TOPICS) || topics.contains(topic));
+    }
+
+    public Mode getMode() { return mode; }
+
+    /**
+     * Whether a message with this id has been sent to the topic within the window; never for no id. If
+     * not, the id is recorded straight away, so that a retry or a repeat in the same batch is caught while
+     * the first send is still in flight; failed() takes it back if that send fails.
+     */
+    public boolean isDuplicate(String topic, String id) {
+        if (id == null) { return false; }
+
+        long[] key = key(topic, id);
+
+        checked.mark();
+
+        if (shard(key).claim(key[0], key[1])) {
+            duplicates.mark();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /** Forgets an id recorded by isDuplicate() once Kafka has refused its message, so it may be sent again. */
+    public void failed(String topic, String id) {
+        if (id == null) { return; }
+
+        long[] key = key(topic, id);
+
+        shard(key).remove(key[0], key[1]);
+    }
+
+    private static long[] key(String topic, String id) {
+        UUID uuid = UUID.fromString(id);
+        long msb = uuid.getMostSignificantBits() ^ (topic.hashCode() * TOPIC_MIX);
+        long lsb = uuid.getLeastSignificantBits();
+
+        // All zeros marks an empty slot.
+        return new long[] { msb, msb == 0 && lsb == 0 ? 1 : lsb };
+    }
+
+    private Shard shard(long[] key) {
+        return shards[(int)((key[0] ^ key[1]) >>> 60) & (SHARDS - 1)];
+    }
+
+    private static int slot(long msb, long lsb) {
+        long h = (msb ^ lsb) * TOPIC_MIX;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,134 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.FetchCacheConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Byte-weighted LRU cache of fetched message ranges. A range is only stored once the log is known to
+ * extend past it, at which point the same fetch can never return anything different. Entries are kept
+ * encoded in a single buffer each, optionally allocated off-heap.
+ */
+public class FetchCache {
+    private static final String ALL_TOPICS = "*";
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int MESSAGE_HEADER = 8 + 8 + 4;
+
+    private static final class Key {
+        final String topic;
+        final int partition, bucket;
+        final long offset;
+
+        Key(String topic, int partition, long offset, int bucket) {
+            this.topic = topic;
+            this.partition = partition;
+            this.offset = offset;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) { return false; }
+
+            Key other = (Key)o;
+            return partition == other.partition && offset == other.offset && bucket == other.bucket && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topic, partition, offset, bucket);
+        }
+    }
+
+    private final Set<String> topics;
+    private final boolean offHeap;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Cache<Key,ByteBuffer> cache;
+
+    public FetchCache(FetchCacheConfig config, MetricRegistry metrics) {
+        this.topics = new HashSet<>(config.getTopics());
+        this.offHeap = config.isOffHeap();
+
+        cache = CacheBuilder.newBuilder().
+                maximumWeight(config.getMaxSize().toBytes()).
+                <Key,ByteBuffer>weigher((key, value) -> value.capacity() + ENTRY_OVERHEAD).
+                removalListener(notification -> bytes.addAndGet(-notification.getValue().capacity())).
+                recordStats().
+                build();
+
+        metrics.register(MetricRegistry.name(FetchCache.class, "hit-ratio"), (Gauge<Double>)() -> cache.stats().hitRate());
+        metrics.register(MetricRegistry.name(FetchCache.class, "bytes"), (Gauge<Long>)() -> bytes.get());
+        metrics.register(MetricRegistry.name(FetchCache.class, "entries"), (Gauge<Long>)() -> cache.size());
+    }
+
+    public boolean isEnabled(String topic) {
+        return !topics.isEmpty() && (topics.contains(ALL_TOPICS) || topics.contains(topic));
+    }
+
+    /**
+     * Rounds maxBytes up to a power of two so that similar requests share entries, but no further than
+     * the largest message size: rounding down could leave a message that fitted the request out of every
+     * batch.
+     */
+    public static int bucket(int maxBytes) {
+        if (maxBytes >= Kafka.MAX_MESSAGE_SIZE) { return maxBytes; }
+
+        int bucket = Integer.highestOneBit(maxBytes);
+
+        return bucket == maxBytes ? bucket : Math.min(bucket << 1, Kafka.MAX_MESSAGE_SIZE);
+    }
+
+    public List<WrappedMessage> get(String topic, int partition, long offset, int bucket) {
+        ByteBuffer encoded = cache.getIfPresent(new Key(topic, partition, offset, bucket));
+
+        return encoded == null ? null : decode(topic, partition, encoded.duplicate());
+    }
+
+    public void put(String topic, int partition, long offset, int bucket, List<WrappedMessage> messages) {
+        int size = 0;
+
+        for (WrappedMessage message : messages) {
+            size += MESSAGE_HEADER + message.payload().length;
+        }
+
+        ByteBuffer encoded = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+
+        for (WrappedMessage message : messages) {
+            encoded.putLong(message.offset);
+            encoded.putLong(message.nextOffset);
+            encoded.putInt(message.payload().length);
+            encoded.put(message.payload());
+        }
+
+        encoded.flip();
+
+        bytes.addAndGet(encoded.capacity());
+        cache.put(new Key(topic, partition, offset, bucket), encoded);
+    }
+
+    private static List<WrappedMessage> decode(String topic, int partition, ByteBuffer encoded) {
+        List<WrappedMessage> messages = new ArrayList<>();
+
+        while (encoded.hasRemaining()) {
+            long offset = encoded.getLong();
+            long nextOffset = encoded.getLong();
+            byte[] payload = new byte[encoded.getInt()];
+            encoded.get(payload);
+
+            messages.add(new WrappedMessage(partition, offset, nextOffset, topic, payload));
+        }
+
+        return messages;
+    }
+}
@@ -0,0 +1,76 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.api.Message;
+
+/**
+ * Tracks the sends of one request through producer callbacks, without holding a thread per message.
+ * The completion handler runs once, with the ids of any failed messages, after close() has been called
+ * and every send has been acknowledged or has failed.
+ */
+public class Insertion {
+    private final static Logger LOG = LoggerFactory.getLogger(Insertion.class);
+
+    private final Consumer<List<String>> onComplete;
+    private final BiConsumer<String,Message> onFailed;
+    private final Queue<String> failed = new ConcurrentLinkedQueue<>();
+
+    // One extra count for the request itself, released by close().
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    // Partition chosen per topic for sticky partitioning; only touched by the thread reading the request.
+    private final Map<String,Integer> partitions = new HashMap<>();
+
+    public Insertion(Consumer<List<String>> onComplete) {
+        this(onComplete, (topic, message) -> {});
+    }
+
+    /** onFailed is called with the topic and message of each send that fails, before the completion handler. */
+    public Insertion(Consumer<List<String>> onComplete, BiConsumer<String,Message> onFailed) {
+        this.onComplete = onComplete;
+        this.onFailed = onFailed;
+    }
+
+    Callback sent(String topic, Message message) {
+        pending.incrementAndGet();
+
+        return (metadata, e) -> {
+            if (e != null) {
+                LOG.warn("message insertion error: {}", e.toString());
+                failed.add(message.id);
+                onFailed.accept(topic, message);
+            }
+
+            release();
+        };
+    }
+
+    int partition(String topic, IntSupplier chooser) {
+        return partitions.computeIfAbsent(topic, t -> chooser.getAsInt());
+    }
+
+    /** Called once every message of the request has been sent. */
+    public void close() {
+        release();
+    }
+
+    private void release() {
+        if (pending.decrementAndGet() == 0) {
+            onComplete.accept(new ArrayList<>(failed));
+        }
+    }
+}
@@ -1,31 +1,40 @@
 package au.edu.ersa.reporting.kzk;
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
-import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
-import org.apache.kafka.common.serialization.StringSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.google.common.base.Joiner;
 import com.google.common.primitives.Ints;
 
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.ConsumerConfig;
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.ProducerConfig;
 import au.edu.ersa.reporting.http.Util;
 import au.edu.ersa.reporting.http.Wrap;
 import au.edu.ersa.reporting.http.api.Broker;
@@ -37,60 +46,103 @@ import io.dropwizard.lifecycle.Managed;
 import kafka.api.FetchRequest;
 import kafka.api.FetchRequestBuilder;
 import kafka.api.PartitionOffsetRequestInfo;
+import kafka.common.ErrorMapping;
 import kafka.common.TopicAndPartition;
 import kafka.javaapi.FetchResponse;
 import kafka.javaapi.OffsetRequest;
 import kafka.javaapi.OffsetResponse;
-import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
 import kafka.message.MessageAndOffset;
 
 public class Kafka implements Managed {
     private final static Logger LOG = LoggerFactory.getLogger(Kafka.class);
 
-    private static final Random RANDOM = new Random();
+    private static final ObjectWriter MESSAGE_WRITER = Util.JSON.writerFor(Message.class);
+    private static final ObjectWriter SMILE_MESSAGE_WRITER = Util.SMILE.writerFor(Message.class);
+    private static final int MAX_POOLED_BUFFER = 1024 * 1024;
 
-    private static final long EARLIEST = kafka.api.OffsetRequest.EarliestTime();
-    private static final long LATEST = kafka.api.OffsetRequest.LatestTime();
+    private static final class SerializationBuffer extends ByteArrayOutputStream {
+        SerializationBuffer() { super(4096); }
+
+        int capacity() { return buf.length; }
+    }
+
+    private static final ThreadLocal<SerializationBuffer> BUFFERS = ThreadLocal.withInitial(SerializationBuffer::new);
+
+    static final long EARLIEST = kafka.api.OffsetRequest.EarliestTime();
+    static final long LATEST = kafka.api.OffsetRequest.LatestTime();
     private static final short VERSION = kafka.api.OffsetRequest.CurrentVersion();
 
     private static final ObjectMapper JSON = new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
 
-    private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+    public static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+    private static final int MIN_PARTITION_FETCH_SIZE = 64 * 1024;
 
     private final String me = toString().replace('@', '-');
 
     private final ZK zk;
-    private KafkaProducer<String,String> producer;
-
-    private KafkaProducer<String,String> newProducer() {
-        Properties props = new Properties();
-
-        props.put("bootstrap.servers", Joiner.on(',').join(listBrokers().stream().map(i -> {
+    private final Metadata metadata;
+    private final ConsumerPool consumers;
+    private final Executor fanOut;
+    private final OffsetRefresher offsets;
+    private final long brokerTimeoutNanos;
+    private final FetchCache fetchCache;
+    private final Producers producers;
+    private final Spool spool;
+    private final Partitioning defaultPartitioning;
+    private final Map<String,Partitioning> topicPartitioning = new HashMap<>();
+    private final ObjectWriter defaultWriter;
+    private final Map<String,ObjectWriter> topicWriters = new HashMap<>();
+
+    private String bootstrapServers() {
+        return Joiner.on(',').join(listBrokers().stream().map(i -> {
             Broker broker = getBroker(Integer.parseInt(i));
             return broker.host + ":" + broker.port;
-        }).collect(Collectors.toList())));
-        props.put("max.request.size", Integer.toString(MAX_MESSAGE_SIZE));
-        props.put("acks", "-1");
-
-        return new KafkaProducer<String,String>(props, new StringSerializer(), new StringSerializer());
-    };
+        }).collect(Collectors.toList()));
+    }
 
-    public Kafka(ZK zk) {
+    public Kafka(ZK zk, Metadata metadata, ConsumerPool consumers, Executor executor, ConsumerConfig config, FetchCache fetchCache, ProducerConfig producerConfig, Spool spool) {
         this.zk = zk;
+        this.metadata = metadata;
+        this.consumers = consumers;
+        this.fetchCache = fetchCache;
+        this.spool = spool;
+        this.producers = new Producers(producerConfig, spool.isEnabled());
+        this.defaultPartitioning = Partitioning.forSpec(producerConfig.getPartitioning());
+        producerConfig.getTopicPartitioning().forEach((topic, spec) -> topicPartitioning.put(topic, Partitioning.forSpec(spec)));
+        this.defaultWriter = writerFor(producerConfig.getEncoding());
+        producerConfig.getTopicEncoding().forEach((topic, encoding) -> topicWriters.put(topic, writerFor(encoding)));
+        this.brokerTimeoutNanos = config.getBrokerTimeout().toNanoseconds();
+        // Run on the caller's thread rather than fail when the shared pool is saturated.
+        this.fanOut = task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+        this.offsets = new OffsetRefresher(this, consumers, fanOut, config.getOffsetRefreshInterval().toMilliseconds());
     }
 
     public List<String> listTopics() {
-        return zk.list("/brokers/topics");
+        if (metadata.isReady()) {
+            return metadata.listTopics();
+        } else {
+            return zk.list("/brokers/topics");
+        }
     }
 
-    public Topic getTopic(String name) {
+    Topic describeTopic(String name) {
+        if (metadata.isReady()) {
+            return metadata.getTopic(name);
+        }
+
         if (!zk.exists("/brokers/topics/" + name)) {
             return null;
         }
 
         Topic topic = new Topic(name);
 
-
         String dataJSON = zk.get("/brokers/topics/" + name);
         if (dataJSON != null && !dataJSON.isEmpty()) {
             topic.summary = Wrap.runtimeException(() -> JSON.readValue(dataJSON, Topic.Data.class));
@@ -104,48 +156,91 @@ public class Kafka implements Managed {
             }
         }
 
-        topic.partition = Collections.synchronizedMap(topic.partition);
+        return topic;
+    }
+
+    /**
+     * Topic metadata with partition offsets. Offsets come from the refresher's snapshot where possible; the
+     * remaining partitions are queried on the shared executor, and if a broker misses the deadline its
+     * partitions are left without offsets and the topic is marked stale.
+     */
+    public Topic getTopic(String name) {
+        Topic topic = describeTopic(name);
+
+        if (topic == null) {
+            return null;
+        }
+
+        List<Integer> missing = offsets.fill(topic);
+
+        if (missing.isEmpty()) {
+            return topic;
+        }
+
+        Map<Broker,CompletableFuture<Map<Integer,long[]>>> futures = new HashMap<>();
 
-        Map<String,List<Integer>> brokerPartitionMap = getBrokerPartitionMap(topic);
+        for (Map.Entry<String,List<Integer>> entry : getBrokerPartitionMap(topic, missing).entrySet()) {
+            Broker broker = getBroker(entry.getKey());
+            int[] partitions = Ints.toArray(entry.getValue());
 
-        ExecutorService exec = Executors.newFixedThreadPool(brokerPartitionMap.size());
+            if (broker == null) {
+                topic.stale = true;
+                continue;
+            }
 
-        brokerPartitionMap.entrySet().stream().forEach((Map.Entry<String,List<Integer>> entry) -> {
-            exec.execute(() -> {
-                Broker broker = getBroker(entry.getKey());
-                int[] partitions = Ints.toArray(entry.getValue());
+            futures.put(broker, CompletableFuture.supplyAsync(() -> {
+                Map<Integer,long[]> result = new HashMap<>();
 
-                try (Consumer consumer = new Consumer(broker.host, broker.port, 1000, 8 * 1024, me)) {
+                try (ConsumerPool.Lease consumer = consumers.checkout(broker)) {
                     long[] earliest = getOffsets(consumer, name, partitions, EARLIEST);
                     long[] latest = getOffsets(consumer, name, partitions, LATEST);
 
                     for (int i = 0; i < partitions.length; i++) {
-                        State state = topic.partition.get(Integer.toString(partitions[i]));
-                        state.earliestOffset = earliest[i];
-                        state.latestOffset = latest[i];
+                        result.put(partitions[i], new long[] { earliest[i], latest[i] });
                     }
                 }
-            });
-        });
 
-        exec.shutdown();
+                return result;
+            }, fanOut));
+        }
+
+        long deadline = System.nanoTime() + brokerTimeoutNanos;
 
-        // Casting awaitTermination to a boolean to keep Eclipse happy.
-        boolean completed = Wrap.runtimeException(() -> (boolean)exec.awaitTermination(10, TimeUnit.SECONDS));
+        for (Map.Entry<Broker,CompletableFuture<Map<Integer,long[]>>> entry : futures.entrySet()) {
+            try {
+                Map<Integer,long[]> result = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
 
-        if (completed) {
-            return topic;
-        } else {
-            return null;
+                for (Map.Entry<Integer,long[]> offset : result.entrySet()) {
+                    State state = topic.partition.get(Integer.toString(offset.getKey()));
+                    state.earliestOffset = offset.getValue()[0];
+                    state.latestOffset = offset.getValue()[1];
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                LOG.warn("offsets for {} from broker {} unavailable: {}", name, entry.getKey().id, e.toString());
+                entry.getValue().cancel(false);
+                topic.stale = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                topic.stale = true;
+                break;
+            }
         }
+
+        return topic;
     }
 
     public Broker getLeader(String topicName, int partition) {
-        Topic topic = getTopic(topicName);
+        State state;
+
+        if (metadata.isReady()) {
+            state = metadata.getState(topicName, partition);
+        } else {
+            Topic topic = describeTopic(topicName);
 
-        if (topic == null) { return null; }
+            if (topic == null) { return null; }
 
-        State state = topic.partition.get(Integer.toString(partition));
+            state = topic.partition.get(Integer.toString(partition));
+        }
 
         if (state == null || state.leader == -1) {
             return null;
@@ -155,12 +250,27 @@ public class Kafka implements Managed {
     }
 
     public List<String> listBrokers() {
-        return zk.list("/brokers/ids");
+        if (metadata.isReady()) {
+            return metadata.listBrokers();
+        } else {
+            return zk.list("/brokers/ids");
+        }
     }
 
-    public Broker getBroker(int id) { return getBroker(Integer.toString(id)); }
+    public Broker getBroker(int id) {
+        if (metadata.isReady()) {
+            return metadata.getBroker(id);
+        } else {
+            return getBroker(Integer.toString(id));
+        }
+    }
 
     public Broker getBroker(String id) {
+        if (metadata.isReady()) {
+            Integer parsed = Ints.tryParse(id);
+            return parsed == null ? null : metadata.getBroker(parsed);
+        }
+
         String brokerJSON = zk.get("/brokers/ids/" + id);
 
         if (brokerJSON != null && !brokerJSON.isEmpty()) {
@@ -173,7 +283,7 @@ public class Kafka implements Managed {
         }
     }
 
-    private long[] getOffsets(SimpleConsumer consumer, String topic, int[] partitions, long time) {
+    private long[] getOffsets(ConsumerPool.Lease consumer, String topic, int[] partitions, long time) {
         long[] offsets = new long[partitions.length];
 
         Map<TopicAndPartition,PartitionOffsetRequestInfo> requestInfo = new HashMap<>();
@@ -193,75 +303,298 @@ public class Kafka implements Managed {
         return offsets;
     }
 
+    Map<TopicAndPartition,Long> getOffsets(ConsumerPool.Lease consumer, Collection<TopicAndPartition> partitions, long time) {
+        Map<TopicAndPartition,PartitionOffsetRequestInfo> requestInfo = new HashMap<>();
+
+        for (TopicAndPartition partition : partitions) {
+            requestInfo.put(partition, new PartitionOffsetRequestInfo(time, 1));
+        }
+
+        OffsetRequest request = new OffsetRequest(requestInfo, VERSION, me);
+        OffsetResponse response = consumer.getOffsetsBefore(request);
+
+        Map<TopicAndPartition,Long> offsets = new HashMap<>();
+
+        for (TopicAndPartition partition : partitions) {
+            long[] result = response.offsets(partition.topic(), partition.partition());
+
+            if (result != null && result.length > 0) {
+                offsets.put(partition, result[0]);
+            }
+        }
+
+        return offsets;
+    }
+
     public static Map<String,List<Integer>> getBrokerPartitionMap(Topic topic) {
+        return getBrokerPartitionMap(topic, null);
+    }
+
+    /** As above, restricted to the given partitions (or all of them if null). */
+    public static Map<String,List<Integer>> getBrokerPartitionMap(Topic topic, Collection<Integer> partitions) {
         Map<String,List<Integer>> map = new HashMap<>();
 
         for (Map.Entry<String,State> entry : topic.partition.entrySet()) {
-            String partition = entry.getKey();
+            int partition = Integer.parseInt(entry.getKey());
             State state = entry.getValue();
 
+            if (partitions != null && !partitions.contains(partition)) { continue; }
+
             String leader = Integer.toString(state.leader);
 
             if (!map.containsKey(leader)) { map.put(leader, new ArrayList<>()); }
 
-            map.get(leader).add(Integer.parseInt(partition));
+            map.get(leader).add(partition);
         }
 
         return map;
     }
 
-    private static class Consumer extends SimpleConsumer implements AutoCloseable {
-        public Consumer(String host, int port, int soTimeout, int bufferSize, String clientId) {
-            super(host, port, soTimeout, bufferSize, clientId);
+    public List<WrappedMessage> fetch(String topicName, int partition, long offset) {
+        return fetch(topicName, partition, offset, MAX_MESSAGE_SIZE);
+    }
+
+    public ByteBufferMessageSet fetchMessageSet(String topicName, int partition, long offset, int maxBytes) {
+        return fetchMessageSet(topicName, partition, offset, maxBytes, 0, 0);
+    }
+
+    /**
+     * With a positive maxWaitMs the broker holds the request until at least minBytes are available or the
+     * wait expires. The wait is capped well below the consumer socket timeout, and such fetches use the
+     * pool's long-poll connections.
+     */
+    public ByteBufferMessageSet fetchMessageSet(String topicName, int partition, long offset, int maxBytes, int maxWaitMs, int minBytes) {
+        Broker broker = getLeader(topicName, partition);
+
+        if (broker == null || maxBytes <= 0) {
+            return null;
+        }
+
+        if (offset < 0) {
+            // offset relative to latest entry
+            long latest = offsets.latest(topicName, partition);
+
+            if (latest < 0) {
+                Topic topic = getTopic(topicName);
+                State state = topic == null ? null : topic.partition.get(Integer.toString(partition));
+
+                if (state == null) { return null; }
+
+                latest = state.latestOffset;
+            }
+
+            offset = Math.max(0, offset + latest);
         }
 
-        @Override
-        public void close() {
-            super.close();
+        try (ConsumerPool.Lease consumer = maxWaitMs > 0 ? consumers.checkoutLongPoll(broker) : consumers.checkout(broker)) {
+            FetchRequest request = new FetchRequestBuilder().clientId(me).
+                    maxWait(Math.min(Math.max(0, maxWaitMs), consumers.getSoTimeout() / 2)).
+                    minBytes(Math.max(0, minBytes)).
+                    addFetch(topicName, partition, offset, maxBytes).
+                    build();
+            FetchResponse response = consumer.fetch(request);
+
+            return response.messageSet(topicName, partition);
         }
     }
 
-    public List<WrappedMessage> fetch(String topicName, int partition, long offset) {
-        return fetch(topicName, partition, offset, MAX_MESSAGE_SIZE);
+    public List<WrappedMessage> fetch(String topicName, int partition, long offset, int maxBytes) {
+        return fetch(topicName, partition, offset, maxBytes, 0, 0);
     }
 
-    public List<WrappedMessage> fetch(String topicName, int partition, long offset, int maxBytes) {
+    public List<WrappedMessage> fetch(String topicName, int partition, long offset, int maxBytes, int maxWaitMs, int minBytes) {
+        boolean cacheable = offset >= 0 && maxBytes > 0 && fetchCache.isEnabled(topicName);
+        int bucket = cacheable ? FetchCache.bucket(maxBytes) : maxBytes;
+
+        if (cacheable) {
+            List<WrappedMessage> cached = fetchCache.get(topicName, partition, offset, bucket);
+            if (cached != null) { return trim(cached, maxBytes); }
+        }
+
+        ByteBufferMessageSet messageSet = fetchMessageSet(topicName, partition, offset, bucket, maxWaitMs, minBytes);
+
+        if (messageSet == null) {
+            return null;
+        }
+
         List<WrappedMessage> messages = new ArrayList<>();
-        Broker broker = getLeader(topicName, partition);
 
-        if (broker == null || maxBytes <= 0) {
+        decode(topicName, partition, messageSet, bucket, messages);
+
+        // Only a range that stops short of the end of the log can never change.
+        if (cacheable && !messages.isEmpty() && messages.get(messages.size() - 1).nextOffset < offsets.latest(topicName, partition)) {
+            fetchCache.put(topicName, partition, offset, bucket, messages);
+        }
+
+        return trim(messages, maxBytes);
+    }
+
+    /** The leading messages whose payloads fit in maxBytes, for a batch fetched in a larger cache bucket. */
+    private static List<WrappedMessage> trim(List<WrappedMessage> messages, int maxBytes) {
+        int byteCount = 0;
+
+        for (int i = 0; i < messages.size(); i++) {
+            byteCount += messages.get(i).payload().length;
+
+            if (byteCount > maxBytes) { return messages.subList(0, i); }
+        }
+
+        return messages;
+    }
+
+    /**
+     * A batch of up to maxBytes from the offset, without the fetch cache. If the next message is larger than
+     * maxBytes it is fetched whole, rather than coming back as an empty batch.
+     */
+    List<WrappedMessage> fetchWhole(String topicName, int partition, long offset, int maxBytes) {
+        ByteBufferMessageSet messageSet = fetchMessageSet(topicName, partition, offset, maxBytes);
+
+        if (messageSet != null && isTruncated(messageSet) && maxBytes < MAX_MESSAGE_SIZE) {
+            messageSet = fetchMessageSet(topicName, partition, offset, MAX_MESSAGE_SIZE);
+        }
+
+        if (messageSet == null) {
             return null;
         }
 
+        List<WrappedMessage> messages = new ArrayList<>();
+        decode(topicName, partition, messageSet, MAX_MESSAGE_SIZE, messages);
+
+        return messages;
+    }
+
+    /** True if the set holds only part of a message, which happens when the message exceeds the fetch size. */
+    static boolean isTruncated(ByteBufferMessageSet messageSet) {
+        return messageSet.validBytes() == 0 && messageSet.sizeInBytes() > 0;
+    }
+
+    /** Messages keep their stored bytes; Smile is only transcoded if a text response needs it. */
+    private static int decode(String topicName, int partition, ByteBufferMessageSet messageSet, int maxBytes, List<WrappedMessage> messages) {
         int byteCount = 0;
 
-        if (offset < 0) {
-            // offset relative to latest entry
-            Topic topic = getTopic(topicName);
-            State state = topic.partition.get(Integer.toString(partition));
+        for (MessageAndOffset msg : messageSet) {
+            ByteBuffer payload = msg.message().payload();
+            byte[] raw = new byte[payload.limit()];
+            payload.get(raw);
+            byteCount += raw.length;
 
-            if (state == null) { return null; }
+            messages.add(new WrappedMessage(partition, msg.offset(), msg.nextOffset(), topicName, raw));
 
-            offset = Math.max(0, offset + state.latestOffset);
+            if (byteCount >= maxBytes) { break; }
         }
 
-        try (Consumer consumer = new Consumer(broker.host, broker.port, 1000, maxBytes, me)) {
-            FetchRequest request = new FetchRequestBuilder().clientId(me).addFetch(topicName, partition, offset, maxBytes).build();
-            FetchResponse response = consumer.fetch(request);
-            for (MessageAndOffset msg : response.messageSet(topicName, partition)) {
-                ByteBuffer payload = msg.message().payload();
-                byte[] bytes = new byte[payload.limit()];
-                payload.get(bytes);
-                byteCount += bytes.length;
-                String string = new String(bytes);
+        return byteCount;
+    }
+
+    /**
+     * Fetches several partitions of one topic, with one FetchRequest per leader broker issued in parallel.
+     * maxBytes is shared by all partitions, which are filled in partition order. A partition whose next
+     * message is larger than its share is fetched again on its own. Partitions without a leader, and
+     * partitions that could not be fetched, come back with an error.
+     */
+    public Map<Integer,PartitionMessages> fetch(String topicName, Map<Integer,Long> offsets, int maxBytes) {
+        boolean relative = offsets.values().stream().anyMatch(offset -> offset < 0);
+        Topic topic = relative ? getTopic(topicName) : describeTopic(topicName);
+
+        if (topic == null || maxBytes <= 0) {
+            return null;
+        }
+
+        Map<Integer,Long> resolved = new TreeMap<>();
+
+        for (Map.Entry<Integer,Long> entry : offsets.entrySet()) {
+            State state = topic.partition.get(Integer.toString(entry.getKey()));
+
+            if (state == null) { continue; }
+
+            long offset = entry.getValue();
+            resolved.put(entry.getKey(), offset < 0 ? Math.max(0, offset + state.latestOffset) : offset);
+        }
+
+        int fetchSize = Math.max(maxBytes / Math.max(1, resolved.size()), MIN_PARTITION_FETCH_SIZE);
+
+        Map<Integer,ByteBufferMessageSet> messageSets = new ConcurrentHashMap<>();
+        Map<Integer,String> errors = new ConcurrentHashMap<>();
+        Map<Broker,Map<Integer,Long>> requests = new HashMap<>();
+
+        // Settle which partitions have a leader before anything runs, so the tasks share no mutable state.
+        for (Map.Entry<String,List<Integer>> entry : getBrokerPartitionMap(topic, resolved.keySet()).entrySet()) {
+            Broker broker = getBroker(entry.getKey());
 
-                messages.add(new WrappedMessage(partition, msg.offset(), msg.nextOffset(), topicName, string));
+            if (broker == null) {
+                entry.getValue().forEach(partition -> errors.put(partition, "no leader"));
+                continue;
+            }
+
+            Map<Integer,Long> request = new TreeMap<>();
+            entry.getValue().forEach(partition -> request.put(partition, resolved.get(partition)));
+            requests.put(broker, Collections.unmodifiableMap(request));
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (Map.Entry<Broker,Map<Integer,Long>> entry : requests.entrySet()) {
+            Broker broker = entry.getKey();
+            Map<Integer,Long> request = entry.getValue();
+            Set<Integer> partitions = request.keySet();
+
+            futures.add(CompletableFuture.runAsync(() -> {
+                FetchRequestBuilder builder = new FetchRequestBuilder().clientId(me);
 
-                if (byteCount >= maxBytes) { break; }
+                for (Map.Entry<Integer,Long> fetch : request.entrySet()) {
+                    builder.addFetch(topicName, fetch.getKey(), fetch.getValue(), fetchSize);
+                }
+
+                try (ConsumerPool.Lease consumer = consumers.checkout(broker)) {
+                    FetchResponse response = consumer.fetch(builder.build());
+
+                    for (int partition : partitions) {
+                        short code = response.errorCode(topicName, partition);
+
+                        if (code == ErrorMapping.NoError()) {
+                            messageSets.put(partition, response.messageSet(topicName, partition));
+                        } else {
+                            errors.put(partition, ErrorMapping.exceptionFor(code).getClass().getSimpleName());
+                        }
+                    }
+                }
+            }, fanOut).exceptionally(e -> {
+                LOG.warn("fetch from broker " + broker.id + " failed: " + topicName + " " + partitions, e);
+                partitions.forEach(partition -> errors.put(partition, "broker " + broker.id + " unavailable"));
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+
+        Map<Integer,PartitionMessages> result = new TreeMap<>();
+        int remaining = maxBytes;
+
+        for (Map.Entry<Integer,Long> entry : resolved.entrySet()) {
+            int partition = entry.getKey();
+            ByteBufferMessageSet messageSet = messageSets.get(partition);
+            List<WrappedMessage> messages = new ArrayList<>();
+
+            if (messageSet != null && remaining > 0 && isTruncated(messageSet) && fetchSize < MAX_MESSAGE_SIZE) {
+                try {
+                    messageSet = fetchMessageSet(topicName, partition, entry.getValue(), MAX_MESSAGE_SIZE);
+                    if (messageSet == null) { errors.put(partition, "no leader"); }
+                } catch (RuntimeException e) {
+                    LOG.warn("fetch of " + topicName + "/" + partition + " failed", e);
+                    messageSet = null;
+                    errors.put(partition, e.toString());
+                }
             }
+
+            if (messageSet != null && remaining > 0) {
+                remaining -= decode(topicName, partition, messageSet, remaining, messages);
+            }
+
+            long nextOffset = messages.isEmpty() ? entry.getValue() : messages.get(messages.size() - 1).nextOffset;
+            result.put(partition, new PartitionMessages(messages, nextOffset, errors.get(partition)));
         }
 
-        return messages;
+        return result;
     }
 
     public Map<String,Future<RecordMetadata>> insert(TopicMessageMap map) {
@@ -287,17 +620,83 @@ public class Kafka implements Managed {
         return futureMap;
     }
 
+    public void insert(String topic, Message message, Insertion insertion) {
+        Callback callback = insertion.sent(topic, message);
+        Partitioning partitioning = partitioning(topic);
+        ProducerRecord<String,byte[]> spoolable;
+
+        try {
+            spoolable = new ProducerRecord<>(topic, partitioning.key(message), serialize(message, writer(topic)));
+        } catch (Exception e) {
+            callback.onCompletion(null, e);
+            return;
+        }
+
+        // While anything is spooled, queue behind it to keep order.
+        if (spool.isBacklogged() && spool.append(spoolable)) {
+            callback.onCompletion(null, null);
+            return;
+        }
+
+        try {
+            Producer<String,byte[]> producer = producers.get(topic);
+            ProducerRecord<String,byte[]> record = new ProducerRecord<>(topic, partitioning.partition(topic, insertion, producer), spoolable.key(), spoolable.value());
+
+            producer.send(record, (metadata, e) -> callback.onCompletion(metadata, e != null && Spool.isSpoolable(e) && spool.append(spoolable) ? null : e));
+        } catch (Exception e) {
+            callback.onCompletion(null, Spool.isSpoolable(e) && spool.append(spoolable) ? null : e);
+        }
+    }
+
     public Future<RecordMetadata> insert(String topic, Message message) {
-        return producer.send(new ProducerRecord<>(topic, Integer.toString(RANDOM.nextInt(Integer.MAX_VALUE)), Util.toJSON(message)));
+        return producers.get(topic).send(new ProducerRecord<>(topic, Partitioning.randomKey(), serialize(message, writer(topic))));
+    }
+
+    private Partitioning partitioning(String topic) {
+        return topicPartitioning.getOrDefault(topic, defaultPartitioning);
+    }
+
+    private static ObjectWriter writerFor(String encoding) {
+        if (encoding.equals("json")) {
+            return MESSAGE_WRITER;
+        } else if (encoding.equals("smile")) {
+            return SMILE_MESSAGE_WRITER;
+        } else {
+            throw new IllegalArgumentException("unknown encoding: " + encoding);
+        }
+    }
+
+    private ObjectWriter writer(String topic) {
+        return topicWriters.getOrDefault(topic, defaultWriter);
+    }
+
+    /** Encoded message, written once through a per-thread buffer that is reused across messages. */
+    static byte[] serialize(Message message, ObjectWriter writer) {
+        SerializationBuffer buffer = BUFFERS.get();
+        buffer.reset();
+
+        byte[] bytes = Wrap.runtimeException(() -> {
+            writer.writeValue(buffer, message);
+            return buffer.toByteArray();
+        });
+
+        // Don't keep an occasional huge message's buffer around for the life of the thread.
+        if (buffer.capacity() > MAX_POOLED_BUFFER) { BUFFERS.remove(); }
+
+        return bytes;
     }
 
     @Override
     public void start() throws Exception {
-        producer = newProducer();
+        producers.start(bootstrapServers());
+        spool.start(record -> producers.get(record.topic()).send(record));
+        offsets.start();
     }
 
     @Override
     public void stop() throws Exception {
-        producer.close();
+        offsets.stop();
+        spool.stop();
+        producers.stop();
     }
 }
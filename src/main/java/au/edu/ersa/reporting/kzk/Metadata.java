@@ -0,0 +1,247 @@
+package au.edu.ersa.reporting.kzk;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCache;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.api.Broker;
+import au.edu.ersa.reporting.http.api.Topic;
+import au.edu.ersa.reporting.http.api.Topic.State;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+/**
+ * In-memory copy of the Kafka cluster metadata under /brokers, kept current by a Curator TreeCache.
+ * Until the initial tree has been loaded (or whenever ZK is unreachable) {@link #isReady()} is false
+ * and callers should fall back to reading ZK directly.
+ */
+public class Metadata implements Managed, TreeCacheListener {
+    private final static Logger LOG = LoggerFactory.getLogger(Metadata.class);
+
+    private static final ObjectMapper JSON = new ObjectMapper().setPropertyNamingStrategy(PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+
+    private static final String ROOT = "/brokers";
+    private static final String IDS = ROOT + "/ids/";
+    private static final String TOPICS = ROOT + "/topics/";
+
+    private static final long INITIAL_WAIT_SECONDS = 10;
+
+    private static class TopicEntry {
+        volatile Topic.Data summary;
+        final ConcurrentMap<Integer,State> partition = new ConcurrentHashMap<>();
+    }
+
+    private final TreeCache cache;
+
+    private final ConcurrentMap<Integer,Broker> brokers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,TopicEntry> topics = new ConcurrentHashMap<>();
+
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private volatile boolean connected = true;
+    private volatile long lastUpdate = System.currentTimeMillis();
+    // Not yet initialised counts as stale from construction.
+    private volatile long disconnectedSince = System.currentTimeMillis();
+
+    private final Meter updates;
+
+    public Metadata(CuratorFramework curator, MetricRegistry metrics) {
+        cache = TreeCache.newBuilder(curator, ROOT).setCacheData(true).build();
+        cache.getListenable().addListener(this);
+
+        updates = metrics.meter(MetricRegistry.name(Metadata.class, "updates"));
+
+        metrics.register(MetricRegistry.name(Metadata.class, "age"), (Gauge<Long>)() -> System.currentTimeMillis() - lastUpdate);
+        metrics.register(MetricRegistry.name(Metadata.class, "staleness"), (Gauge<Long>)() -> isReady() ? 0 : System.currentTimeMillis() - disconnectedSince);
+        metrics.register(MetricRegistry.name(Metadata.class, "topics"), (Gauge<Integer>)() -> topics.size());
+        metrics.register(MetricRegistry.name(Metadata.class, "brokers"), (Gauge<Integer>)() -> brokers.size());
+    }
+
+    @Override
+    public void start() throws Exception {
+        cache.start();
+
+        if (!initialized.await(INITIAL_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            LOG.warn("metadata cache not initialised after {}s, falling back to ZK reads", INITIAL_WAIT_SECONDS);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        cache.close();
+    }
+
+    public boolean isReady() {
+        return connected && initialized.getCount() == 0;
+    }
+
+    public List<String> listTopics() {
+        return new ArrayList<>(topics.keySet());
+    }
+
+    public List<String> listBrokers() {
+        List<String> list = new ArrayList<>();
+
+        for (Integer id : brokers.keySet()) {
+            list.add(Integer.toString(id));
+        }
+
+        return list;
+    }
+
+    public Broker getBroker(int id) {
+        Broker cached = brokers.get(id);
+
+        if (cached == null) { return null; }
+
+        // Broker carries a per-response envelope, so hand out a fresh instance.
+        Broker broker = new Broker();
+        broker.id = cached.id;
+        broker.jmxPort = cached.jmxPort;
+        broker.version = cached.version;
+        broker.port = cached.port;
+        broker.timestamp = cached.timestamp;
+        broker.host = cached.host;
+
+        return broker;
+    }
+
+    public boolean hasTopic(String name) {
+        return topics.containsKey(name);
+    }
+
+    /** Topic summary and partition states, without offsets. Returns a copy the caller may modify. */
+    public Topic getTopic(String name) {
+        TopicEntry entry = topics.get(name);
+
+        if (entry == null) { return null; }
+
+        Topic topic = new Topic(name);
+        topic.summary = entry.summary;
+
+        for (Map.Entry<Integer,State> state : entry.partition.entrySet()) {
+            topic.partition.put(Integer.toString(state.getKey()), copy(state.getValue()));
+        }
+
+        return topic;
+    }
+
+    public State getState(String topicName, int partition) {
+        TopicEntry entry = topics.get(topicName);
+
+        if (entry == null) { return null; }
+
+        State state = entry.partition.get(partition);
+
+        return state == null ? null : copy(state);
+    }
+
+    private static State copy(State state) {
+        State copy = new State();
+
+        copy.controllerEpoch = state.controllerEpoch;
+        copy.leader = state.leader;
+        copy.version = state.version;
+        copy.leaderEpoch = state.leaderEpoch;
+        copy.isr = state.isr;
+
+        return copy;
+    }
+
+    @Override
+    public void childEvent(CuratorFramework client, TreeCacheEvent event) throws Exception {
+        switch (event.getType()) {
+        case NODE_ADDED:
+        case NODE_UPDATED:
+            update(event.getData(), false);
+            break;
+        case NODE_REMOVED:
+            update(event.getData(), true);
+            break;
+        case INITIALIZED:
+            LOG.info("metadata cache initialised: {} topics, {} brokers", topics.size(), brokers.size());
+            initialized.countDown();
+            break;
+        case CONNECTION_SUSPENDED:
+        case CONNECTION_LOST:
+            if (connected) {
+                connected = false;
+                disconnectedSince = System.currentTimeMillis();
+                LOG.warn("metadata cache disconnected: {}", event.getType());
+            }
+            break;
+        case CONNECTION_RECONNECTED:
+            connected = true;
+            LOG.info("metadata cache reconnected");
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void update(ChildData data, boolean removed) {
+        if (data == null) { return; }
+
+        String path = data.getPath();
+        byte[] bytes = data.getData();
+        boolean empty = bytes == null || bytes.length == 0;
+
+        try {
+            if (path.startsWith(IDS)) {
+                int id = Integer.parseInt(path.substring(IDS.length()));
+
+                if (removed || empty) {
+                    brokers.remove(id);
+                } else {
+                    Broker broker = JSON.readValue(bytes, Broker.class);
+                    broker.id = id;
+                    brokers.put(id, broker);
+                }
+            } else if (path.startsWith(TOPICS)) {
+                // topics/{name}[/partitions[/{partition}[/state]]]
+                String[] parts = path.substring(TOPICS.length()).split("/");
+                String name = parts[0];
+
+                if (parts.length == 1) {
+                    if (removed) {
+                        topics.remove(name);
+                    } else {
+                        topics.computeIfAbsent(name, k -> new TopicEntry()).summary = empty ? null : JSON.readValue(bytes, Topic.Data.class);
+                    }
+                } else if (parts.length == 4 && parts[3].equals("state")) {
+                    int partition = Integer.parseInt(parts[2]);
+
+                    if (removed || empty) {
+                        TopicEntry entry = topics.get(name);
+                        if (entry != null) { entry.partition.remove(partition); }
+                    } else {
+                        topics.computeIfAbsent(name, k -> new TopicEntry()).partition.put(partition, JSON.readValue(bytes, State.class));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("unable to process metadata update for " + path, e);
+        }
+
+        lastUpdate = System.currentTimeMillis();
+        updates.mark();
+    }
+}
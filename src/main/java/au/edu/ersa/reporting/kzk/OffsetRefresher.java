@@ -0,0 +1,193 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.api.Broker;
+import au.edu.ersa.reporting.http.api.Topic;
+import au.edu.ersa.reporting.http.api.Topic.State;
+
+import com.google.common.collect.ImmutableMap;
+
+import kafka.common.TopicAndPartition;
+
+/**
+ * Periodically collects the earliest and latest offsets of every topic-partition, one OffsetRequest per
+ * broker for each of the two times, and publishes them as an immutable snapshot that readers use without
+ * locking. A partition whose broker stops answering keeps its last range for a while, marking its topic
+ * stale once it has missed a refresh, and is dropped from the snapshot after MAX_AGE_INTERVALS.
+ */
+class OffsetRefresher {
+    private final static Logger LOG = LoggerFactory.getLogger(OffsetRefresher.class);
+
+    private static final int STALE_INTERVALS = 2, MAX_AGE_INTERVALS = 10;
+
+    static final class Range {
+        final long earliest, latest;
+        final long refreshed;
+
+        Range(long earliest, long latest, long refreshed) {
+            this.earliest = earliest;
+            this.latest = latest;
+            this.refreshed = refreshed;
+        }
+    }
+
+    static final class Snapshot {
+        final Map<TopicAndPartition,Range> ranges;
+        final long timestamp;
+
+        Snapshot(Map<TopicAndPartition,Range> ranges, long timestamp) {
+            this.ranges = ImmutableMap.copyOf(ranges);
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final Kafka kafka;
+    private final ConsumerPool consumers;
+    private final Executor executor;
+    private final long intervalMs;
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(ImmutableMap.of(), 0));
+
+    private ScheduledExecutorService scheduler;
+
+    OffsetRefresher(Kafka kafka, ConsumerPool consumers, Executor executor, long intervalMs) {
+        this.kafka = kafka;
+        this.consumers = consumers;
+        this.executor = executor;
+        this.intervalMs = intervalMs;
+    }
+
+    void start() {
+        if (intervalMs <= 0) { return; }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, toString().replace('@', '-'));
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (Exception e) {
+                LOG.warn("offset refresh failed", e);
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) { scheduler.shutdownNow(); }
+    }
+
+    Snapshot getSnapshot() { return snapshot.get(); }
+
+    /**
+     * Fills in offsets from the snapshot, marking the topic stale if any of them have missed a refresh;
+     * returns the partitions that were missing from it.
+     */
+    List<Integer> fill(Topic topic) {
+        Map<TopicAndPartition,Range> ranges = snapshot.get().ranges;
+        List<Integer> missing = new ArrayList<>();
+        long staleBefore = System.currentTimeMillis() - STALE_INTERVALS * intervalMs;
+
+        for (Map.Entry<String,State> entry : topic.partition.entrySet()) {
+            int partition = Integer.parseInt(entry.getKey());
+            Range range = ranges.get(new TopicAndPartition(topic.name, partition));
+
+            if (range != null) {
+                entry.getValue().earliestOffset = range.earliest;
+                entry.getValue().latestOffset = range.latest;
+
+                if (range.refreshed < staleBefore) { topic.stale = true; }
+            } else {
+                missing.add(partition);
+            }
+        }
+
+        return missing;
+    }
+
+    /** Latest offset from the snapshot, or -1 if the partition is not in it. */
+    long latest(String topic, int partition) {
+        Range range = snapshot.get().ranges.get(new TopicAndPartition(topic, partition));
+
+        return range == null ? -1 : range.latest;
+    }
+
+    void refresh() {
+        Map<String,List<TopicAndPartition>> brokerPartitionMap = new HashMap<>();
+
+        for (String name : kafka.listTopics()) {
+            Topic topic = kafka.describeTopic(name);
+
+            if (topic == null) { continue; }
+
+            for (Map.Entry<String,List<Integer>> entry : Kafka.getBrokerPartitionMap(topic).entrySet()) {
+                List<TopicAndPartition> list = brokerPartitionMap.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+
+                for (int partition : entry.getValue()) {
+                    list.add(new TopicAndPartition(name, partition));
+                }
+            }
+        }
+
+        Map<TopicAndPartition,Range> previous = snapshot.get().ranges;
+        Map<TopicAndPartition,Range> ranges = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (Map.Entry<String,List<TopicAndPartition>> entry : brokerPartitionMap.entrySet()) {
+            Broker broker = kafka.getBroker(entry.getKey());
+            List<TopicAndPartition> partitions = entry.getValue();
+
+            if (broker == null) { continue; }
+
+            futures.add(CompletableFuture.runAsync(() -> {
+                try (ConsumerPool.Lease consumer = consumers.checkout(broker)) {
+                    Map<TopicAndPartition,Long> earliest = kafka.getOffsets(consumer, partitions, Kafka.EARLIEST);
+                    Map<TopicAndPartition,Long> latest = kafka.getOffsets(consumer, partitions, Kafka.LATEST);
+
+                    for (TopicAndPartition partition : partitions) {
+                        if (earliest.containsKey(partition) && latest.containsKey(partition)) {
+                            ranges.put(partition, new Range(earliest.get(partition), latest.get(partition), now));
+                        }
+                    }
+                }
+            }, executor).exceptionally(e -> {
+                LOG.warn("offset refresh from broker " + broker.id + " failed", e);
+                return null;
+            }));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+
+        // Keep the last known offsets for partitions whose broker did not answer this time, for a while.
+        long cutoff = now - MAX_AGE_INTERVALS * intervalMs;
+
+        for (List<TopicAndPartition> partitions : brokerPartitionMap.values()) {
+            for (TopicAndPartition partition : partitions) {
+                Range range = previous.get(partition);
+
+                if (!ranges.containsKey(partition) && range != null && range.refreshed >= cutoff) {
+                    ranges.put(partition, range);
+                }
+            }
+        }
+
+        snapshot.set(new Snapshot(ranges, now));
+    }
+}
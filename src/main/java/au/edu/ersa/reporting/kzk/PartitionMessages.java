@@ -0,0 +1,26 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public class PartitionMessages {
+    public final List<WrappedMessage> messages;
+
+    @JsonProperty("next_offset")
+    public final long nextOffset;
+
+    // Set when the partition could not be fetched; there are no messages and next_offset is unchanged.
+    public final String error;
+
+    public PartitionMessages(List<WrappedMessage> messages, long nextOffset) {
+        this(messages, nextOffset, null);
+    }
+
+    public PartitionMessages(List<WrappedMessage> messages, long nextOffset, String error) {
+        this.messages = Collections.unmodifiableList(messages);
+        this.nextOffset = nextOffset;
+        this.error = error;
+    }
+}
@@ -0,0 +1,79 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.common.PartitionInfo;
+
+import au.edu.ersa.reporting.http.api.Message;
+
+/**
+ * How the messages of a topic are spread over its partitions:
+ * <ul>
+ * <li>{@code random}: a random key per message;</li>
+ * <li>{@code round-robin}: no key, so the producer takes each partition in turn;</li>
+ * <li>{@code sticky}: every message of a request to the same randomly chosen partition;</li>
+ * <li>{@code session}: keyed by {@link Message#session};</li>
+ * <li>{@code field:<name>}: keyed by the given field of {@link Message#data}.</li>
+ * </ul>
+ * Keyed strategies fall back to a random key for messages without one.
+ */
+@FunctionalInterface
+interface Partitioning {
+    /** Key for a message, or null to let the producer take partitions in turn. */
+    String key(Message message);
+
+    /** Explicit partition for a message, or null to partition by key. */
+    default Integer partition(String topic, Insertion insertion, Producer<String,byte[]> producer) {
+        return null;
+    }
+
+    static Partitioning forSpec(String spec) {
+        if (spec.equals("random")) {
+            return message -> randomKey();
+        } else if (spec.equals("round-robin")) {
+            return message -> null;
+        } else if (spec.equals("sticky")) {
+            return new Partitioning() {
+                @Override
+                public String key(Message message) {
+                    return null;
+                }
+
+                @Override
+                public Integer partition(String topic, Insertion insertion, Producer<String,byte[]> producer) {
+                    return insertion.partition(topic, () -> choosePartition(producer.partitionsFor(topic)));
+                }
+            };
+        } else if (spec.equals("session")) {
+            return message -> keyOrRandom(message.session);
+        } else if (spec.startsWith("field:") && spec.length() > "field:".length()) {
+            String field = spec.substring("field:".length());
+
+            return message -> {
+                Object key = message.data == null ? null : message.data.get(field);
+                return keyOrRandom(key == null ? null : key.toString());
+            };
+        } else {
+            throw new IllegalArgumentException("unknown partitioning: " + spec);
+        }
+    }
+
+    static String randomKey() {
+        return Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    }
+
+    static String keyOrRandom(String key) {
+        return key != null ? key : randomKey();
+    }
+
+    /** A random partition, preferring those that currently have a leader. */
+    static int choosePartition(List<PartitionInfo> partitions) {
+        List<PartitionInfo> available = partitions.stream().filter(p -> p.leader() != null).collect(Collectors.toList());
+        List<PartitionInfo> candidates = available.isEmpty() ? partitions : available;
+
+        return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size())).partition();
+    }
+}
@@ -0,0 +1,84 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.ProducerConfig;
+
+/**
+ * The producers used for ingest. Topics are spread over a fixed set of shared producers by hash, so that
+ * one busy topic does not hold the accumulator of every other; topics with their own settings get a
+ * producer of their own.
+ */
+class Producers {
+    private final static Logger LOG = LoggerFactory.getLogger(Producers.class);
+
+    private final ProducerConfig config;
+    private final boolean failFast;
+
+    private final List<KafkaProducer<String,byte[]>> shared = new ArrayList<>();
+    private final Map<String,KafkaProducer<String,byte[]>> dedicated = new HashMap<>();
+
+    /** With failFast, a full buffer fails sends at once instead of blocking, so that they can be spooled. */
+    Producers(ProducerConfig config, boolean failFast) {
+        this.config = config;
+        this.failFast = failFast;
+    }
+
+    private Properties properties(String bootstrap) {
+        Properties props = new Properties();
+
+        props.put("bootstrap.servers", bootstrap);
+        props.put("max.request.size", Integer.toString(Kafka.MAX_MESSAGE_SIZE));
+        props.put("acks", config.getAcks());
+        props.put("batch.size", Long.toString(config.getBatchSize().toBytes()));
+        props.put("linger.ms", Long.toString(config.getLinger().toMilliseconds()));
+        props.put("compression.type", config.getCompression());
+        props.put("buffer.memory", Long.toString(config.getBufferMemory().toBytes()));
+        props.put("max.in.flight.requests.per.connection", Integer.toString(config.getMaxInFlight()));
+        if (failFast) { props.put("block.on.buffer.full", "false"); }
+        props.putAll(config.getProperties());
+
+        return props;
+    }
+
+    private static KafkaProducer<String,byte[]> newProducer(Properties props) {
+        return new KafkaProducer<String,byte[]>(props, new StringSerializer(), new ByteArraySerializer());
+    }
+
+    /** Not thread-safe with get(); called once before any insert. */
+    void start(String bootstrap) {
+        for (int i = 0; i < Math.max(1, config.getProducers()); i++) {
+            shared.add(newProducer(properties(bootstrap)));
+        }
+
+        for (Map.Entry<String,Map<String,String>> entry : config.getTopics().entrySet()) {
+            Properties props = properties(bootstrap);
+            props.putAll(entry.getValue());
+
+            dedicated.put(entry.getKey(), newProducer(props));
+        }
+
+        LOG.info("started {} shared and {} dedicated producers", shared.size(), dedicated.size());
+    }
+
+    KafkaProducer<String,byte[]> get(String topic) {
+        KafkaProducer<String,byte[]> producer = dedicated.get(topic);
+
+        return producer != null ? producer : shared.get(Math.floorMod(topic.hashCode(), shared.size()));
+    }
+
+    void stop() {
+        shared.forEach(KafkaProducer::close);
+        dedicated.values().forEach(KafkaProducer::close);
+    }
+}
@@ -0,0 +1,398 @@
+package au.edu.ersa.reporting.kzk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.apache.kafka.clients.producer.BufferExhaustedException;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.errors.RetriableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.SpoolConfig;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Local append-only store for accepted messages that Kafka could not take. Records go into fixed-size
+ * memory-mapped segment files, each record framed by its length and CRC. While anything is spooled, new
+ * messages are spooled too, so that a background drainer can replay everything in order once Kafka is
+ * back. The drained position is kept in a small file beside the segments.
+ */
+public class Spool {
+    private final static Logger LOG = LoggerFactory.getLogger(Spool.class);
+
+    private static final String PREFIX = "spool-", SUFFIX = ".log", POSITION = "position";
+    private static final int HEADER = 4 + 4;
+    private static final int MAX_DRAIN_BATCH = 1000;
+    private static final long SEND_TIMEOUT_MS = 60000;
+    private static final long IDLE_MS = 1000, FAILURE_BACKOFF_MS = 5000;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSegments;
+    private final boolean fsync;
+
+    // Segments on disk by sequence number; guarded by this, as are the positions below.
+    private final TreeMap<Long,MappedByteBuffer> segments = new TreeMap<>();
+    private long writeSeq = -1, readSeq = -1;
+    private int writePos, readPos;
+
+    private final Meter spooled, drained, deadLettered;
+
+    private Thread drainer;
+    private volatile boolean running = false;
+
+    public Spool(SpoolConfig config, MetricRegistry metrics) {
+        this.directory = config.getDirectory() == null ? null : new File(config.getDirectory());
+        this.segmentSize = (int)Math.min(Integer.MAX_VALUE, config.getSegmentSize().toBytes());
+        this.maxSegments = Math.max(2, config.getMaxSize().toBytes() / segmentSize);
+        this.fsync = config.isFsync();
+
+        this.spooled = metrics.meter(MetricRegistry.name(Spool.class, "spooled"));
+        this.drained = metrics.meter(MetricRegistry.name(Spool.class, "drained"));
+        this.deadLettered = metrics.meter(MetricRegistry.name(Spool.class, "dead-lettered"));
+        metrics.register(MetricRegistry.name(Spool.class, "segments"), (Gauge<Integer>)() -> segmentCount());
+    }
+
+    public boolean isEnabled() { return directory != null; }
+
+    private synchronized int segmentCount() { return segments.size(); }
+
+    /** Whether there are spooled messages still to be sent, in which case new ones must queue behind them. */
+    public synchronized boolean isBacklogged() {
+        return writeSeq >= 0 && (readSeq < writeSeq || readPos < writePos);
+    }
+
+    /** Returns false if the spool is disabled, full or failing, in which case the message is not stored. */
+    public synchronized boolean append(ProducerRecord<String,byte[]> record) {
+        if (!isEnabled() || !running) { return false; }
+
+        byte[] topic = record.topic().getBytes(StandardCharsets.UTF_8);
+        byte[] key = record.key() == null ? null : record.key().getBytes(StandardCharsets.UTF_8);
+        int length = 2 + topic.length + 4 + (key == null ? 0 : key.length) + record.value().length;
+
+        if (HEADER + length > segmentSize) {
+            LOG.warn("message of {} bytes too large to spool", length);
+            return false;
+        }
+
+        try {
+            if (writeSeq < 0 || writePos + HEADER + length > segmentSize) {
+                if (segments.size() >= maxSegments) {
+                    LOG.warn("spool full at {} segments", segments.size());
+                    return false;
+                }
+
+                newSegment();
+            }
+        } catch (IOException e) {
+            LOG.error("unable to create spool segment", e);
+            return false;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.putShort((short)topic.length).put(topic);
+        body.putInt(key == null ? -1 : key.length);
+        if (key != null) { body.put(key); }
+        body.put(record.value());
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        // The length goes in last, so a torn write reads as the end of the segment.
+        MappedByteBuffer segment = segments.get(writeSeq);
+        segment.putInt(writePos + 4, (int)crc.getValue());
+        ((ByteBuffer)segment.duplicate().position(writePos + HEADER)).put(body.array());
+        segment.putInt(writePos, length);
+
+        if (fsync) { segment.force(); }
+
+        writePos += HEADER + length;
+        spooled.mark();
+
+        return true;
+    }
+
+    private void newSegment() throws IOException {
+        long seq = writeSeq < 0 ? (segments.isEmpty() ? 0 : segments.lastKey() + 1) : writeSeq + 1;
+
+        segments.put(seq, map(seq));
+        writeSeq = seq;
+        writePos = 0;
+
+        if (readSeq < 0) {
+            readSeq = seq;
+            readPos = 0;
+        }
+    }
+
+    private File segmentFile(long seq) {
+        return new File(directory, String.format("%s%020d%s", PREFIX, seq, SUFFIX));
+    }
+
+    private MappedByteBuffer map(long seq) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "rw")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static final class Spooled {
+        final ProducerRecord<String,byte[]> record;
+        final long seq;
+        final int nextPos;
+
+        Spooled(ProducerRecord<String,byte[]> record, long seq, int nextPos) {
+            this.record = record;
+            this.seq = seq;
+            this.nextPos = nextPos;
+        }
+    }
+
+    /** Reads up to max records from the drained position on, stopping at the end of the segment. */
+    private synchronized List<Spooled> read(int max) {
+        List<Spooled> batch = new ArrayList<>();
+
+        if (readSeq < 0) { return batch; }
+
+        // Move on from a finished segment, deleting it.
+        while (readSeq < writeSeq && length(segments.get(readSeq), readPos) <= 0) {
+            segments.remove(readSeq);
+            if (!segmentFile(readSeq).delete()) { LOG.warn("unable to delete drained spool segment {}", readSeq); }
+
+            readSeq = segments.ceilingKey(readSeq + 1);
+            readPos = 0;
+        }
+
+        MappedByteBuffer segment = segments.get(readSeq);
+        int pos = readPos;
+
+        while (batch.size() < max) {
+            int length = length(segment, pos);
+            if (length == 0) { break; }
+
+            byte[] body = length > 0 && pos + HEADER + length <= segmentSize ? new byte[length] : null;
+
+            if (body != null) {
+                ((ByteBuffer)segment.duplicate().position(pos + HEADER)).get(body);
+            }
+
+            CRC32 crc = new CRC32();
+            if (body != null) { crc.update(body); }
+
+            if (body == null || (int)crc.getValue() != segment.getInt(pos + 4)) {
+                LOG.error("corrupt record in spool segment {} at {}; skipping rest of segment", readSeq, pos);
+                skipSegment();
+                batch.add(new Spooled(null, readSeq, segmentSize));
+                break;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            byte[] topic = new byte[buffer.getShort()];
+            buffer.get(topic);
+            int keyLength = buffer.getInt();
+            byte[] key = keyLength < 0 ? null : new byte[keyLength];
+            if (key != null) { buffer.get(key); }
+            byte[] value = new byte[buffer.remaining()];
+            buffer.get(value);
+
+            pos += HEADER + length;
+
+            ProducerRecord<String,byte[]> record = new ProducerRecord<>(new String(topic, StandardCharsets.UTF_8), key == null ? null : new String(key, StandardCharsets.UTF_8), value);
+            batch.add(new Spooled(record, readSeq, pos));
+        }
+
+        return batch;
+    }
+
+    private void skipSegment() {
+        if (readSeq == writeSeq) {
+            // Nothing can be read past this point; carry on writing into a new segment.
+            writeSeq = -1;
+        }
+    }
+
+    /** Gives up on the rest of the segment being drained, when its records can't be read. */
+    private synchronized void abandonSegment() {
+        skipSegment();
+
+        try {
+            advance(readSeq, segmentSize);
+        } catch (IOException e) {
+            LOG.error("unable to record spool position", e);
+        }
+    }
+
+    private int length(MappedByteBuffer segment, int pos) {
+        return pos + HEADER > segmentSize ? 0 : segment.getInt(pos);
+    }
+
+    private synchronized void advance(long seq, int pos) throws IOException {
+        readSeq = seq;
+        readPos = pos;
+
+        byte[] position = ByteBuffer.allocate(8 + 4).putLong(seq).putInt(pos).array();
+        File tmp = new File(directory, POSITION + ".tmp");
+
+        Files.write(tmp.toPath(), position);
+        Files.move(tmp.toPath(), new File(directory, POSITION).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Whether a failed send is worth keeping for later: Kafka may take the message once it recovers. */
+    static boolean isSpoolable(Throwable e) {
+        return e instanceof RetriableException || e instanceof BufferExhaustedException;
+    }
+
+    private static Future<RecordMetadata> send(Function<ProducerRecord<String,byte[]>,Future<RecordMetadata>> sender, ProducerRecord<String,byte[]> record) {
+        try {
+            return sender.apply(record);
+        } catch (Exception e) {
+            CompletableFuture<RecordMetadata> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void drain(Function<ProducerRecord<String,byte[]>,Future<RecordMetadata>> sender) {
+        while (running) {
+            List<Spooled> batch;
+
+            try {
+                batch = read(MAX_DRAIN_BATCH);
+            } catch (RuntimeException e) {
+                LOG.error("unreadable spool segment {}; skipping rest of segment", readSeq, e);
+                abandonSegment();
+                continue;
+            }
+
+            if (batch.isEmpty()) {
+                Uninterruptibles.sleepUninterruptibly(IDLE_MS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            List<Future<RecordMetadata>> futures = new ArrayList<>();
+
+            for (Spooled spooled : batch) {
+                futures.add(spooled.record == null ? null : send(sender, spooled.record));
+            }
+
+            Spooled done = null;
+            int sent = 0;
+
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Future<RecordMetadata> future = futures.get(i);
+
+                    if (future != null) {
+                        try {
+                            future.get(SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                            sent++;
+                        } catch (ExecutionException e) {
+                            if (isSpoolable(e.getCause())) { throw e; }
+
+                            // Kafka will never take this one; drop it rather than hold up everything behind it.
+                            LOG.error("dropping spooled message for {}: {}", batch.get(i).record.topic(), e.getCause().toString());
+                            deadLettered.mark();
+                        }
+                    }
+
+                    done = batch.get(i);
+                }
+            } catch (Exception e) {
+                // Anything sent after the last message known to be done will be sent again.
+                LOG.warn("spool drain failed, retrying: {}", e.toString());
+                Uninterruptibles.sleepUninterruptibly(FAILURE_BACKOFF_MS, TimeUnit.MILLISECONDS);
+            }
+
+            if (done != null) {
+                try {
+                    advance(done.seq, done.nextPos);
+                    drained.mark(sent);
+                } catch (IOException e) {
+                    LOG.error("unable to record spool position", e);
+                    Uninterruptibles.sleepUninterruptibly(FAILURE_BACKOFF_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private synchronized void recover() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create spool directory: " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        Arrays.sort(files);
+
+        for (File file : files) {
+            long seq = Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length()));
+            segments.put(seq, map(seq));
+        }
+
+        if (segments.isEmpty()) { return; }
+
+        File position = new File(directory, POSITION);
+
+        if (position.exists()) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(position.toPath()));
+            readSeq = buffer.getLong();
+            readPos = buffer.getInt();
+        }
+
+        if (!segments.containsKey(readSeq)) {
+            readSeq = segments.firstKey();
+            readPos = 0;
+        }
+
+        // Find the end of the last segment.
+        writeSeq = segments.lastKey();
+        writePos = writeSeq == readSeq ? readPos : 0;
+
+        MappedByteBuffer segment = segments.get(writeSeq);
+        int length;
+
+        while ((length = length(segment, writePos)) > 0 && writePos + HEADER + length <= segmentSize) {
+            writePos += HEADER + length;
+        }
+
+        LOG.info("recovered {} spool segments, draining from {}:{}", segments.size(), readSeq, readPos);
+    }
+
+    void start(Function<ProducerRecord<String,byte[]>,Future<RecordMetadata>> sender) throws IOException {
+        if (!isEnabled()) { return; }
+
+        recover();
+        running = true;
+
+        drainer = new Thread(() -> drain(sender), toString().replace('@', '-'));
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    void stop() throws InterruptedException {
+        running = false;
+
+        if (drainer != null) { drainer.join(SEND_TIMEOUT_MS); }
+    }
+}
@@ -0,0 +1,277 @@
+package au.edu.ersa.reporting.kzk;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.api.Topic;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Shared background fetchers for streaming subscribers. Every subscriber to a topic/partition is fed by
+ * the same tailer, so the brokers see one consumer however many subscribers there are. Subscribers that
+ * start behind the tailer catch up with their own fetches, one batch per round, before joining it.
+ * <p>
+ * Tailers poll rather than long-poll, so they hold a pooled connection only for the fetch itself. Each
+ * subscriber's batches are written from a queue of its own, so a slow client holds up nobody else; while
+ * its queue is full it stops advancing and picks up again through the catch-up path.
+ */
+public class Tailers implements Managed {
+    private final static Logger LOG = LoggerFactory.getLogger(Tailers.class);
+
+    private static final int FETCH_SIZE = 1024 * 1024;
+    private static final long POLL_INTERVAL_MS = 250;
+    private static final long FAILURE_BACKOFF_MS = 2000;
+    private static final int MAX_PENDING_BATCHES = 16;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    public interface Listener {
+        /** Returns false once the listener no longer wants messages. */
+        boolean onMessages(int partition, List<WrappedMessage> messages);
+
+        /** Called when a round brought nothing new; returns false once the listener is gone. */
+        boolean onIdle();
+    }
+
+    public class Subscription {
+        private final Tailer tailer;
+        private final Listener listener;
+        private final BlockingQueue<List<WrappedMessage>> pending = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private long nextOffset;
+
+        private Subscription(Tailer tailer, Listener listener, long nextOffset) {
+            this.tailer = tailer;
+            this.listener = listener;
+            this.nextOffset = nextOffset;
+        }
+
+        public void cancel() {
+            tailer.subscriptions.remove(this);
+            pending.clear();
+        }
+
+        private boolean isFull() {
+            return pending.remainingCapacity() == 0;
+        }
+
+        /** Queues messages for the listener, or an empty list for an idle round; false if the queue is full. */
+        private boolean offer(List<WrappedMessage> messages) {
+            if (!pending.offer(messages)) { return false; }
+
+            drain();
+            return true;
+        }
+
+        private void drain() {
+            if (draining.compareAndSet(false, true)) {
+                delivery.execute(this::deliverPending);
+            }
+        }
+
+        private void deliverPending() {
+            try {
+                List<WrappedMessage> messages;
+
+                while ((messages = pending.poll()) != null) {
+                    if (!(messages.isEmpty() ? listener.onIdle() : listener.onMessages(tailer.partition, messages))) {
+                        cancel();
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("error delivering " + tailer.key, e);
+                cancel();
+                return;
+            } finally {
+                draining.set(false);
+            }
+
+            // Anything queued after the last poll but before draining was cleared.
+            if (!pending.isEmpty()) { drain(); }
+        }
+    }
+
+    private final Kafka kafka;
+    private final Map<String,Tailer> tailers = new HashMap<>();
+    private final String me = toString().replace('@', '-');
+
+    private ExecutorService executor, delivery;
+    private volatile boolean running = false;
+
+    public Tailers(Kafka kafka) {
+        this.kafka = kafka;
+    }
+
+    public synchronized Subscription subscribe(String topic, int partition, long offset, Listener listener) {
+        if (!running) { throw new IllegalStateException("not running"); }
+
+        String key = topic + "/" + partition;
+        Tailer tailer = tailers.get(key);
+
+        if (tailer == null) {
+            tailer = new Tailer(key, topic, partition, offset);
+            tailers.put(key, tailer);
+            executor.execute(tailer);
+        }
+
+        Subscription subscription = new Subscription(tailer, listener, offset);
+        tailer.subscriptions.add(subscription);
+
+        return subscription;
+    }
+
+    private synchronized boolean retire(Tailer tailer) {
+        if (tailer.subscriptions.isEmpty()) {
+            tailers.remove(tailer.key);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private class Tailer implements Runnable {
+        final String key, topic;
+        final int partition;
+        final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+        long position;
+
+        Tailer(String key, String topic, int partition, long position) {
+            this.key = key;
+            this.topic = topic;
+            this.partition = partition;
+            this.position = position;
+        }
+
+        @Override
+        public void run() {
+            Thread.currentThread().setName(me + "-" + key);
+            LOG.info("tailing {} from {}", key, position);
+
+            while (running && !(subscriptions.isEmpty() && retire(this))) {
+                try {
+                    long start = position;
+                    List<WrappedMessage> batch = kafka.fetchWhole(topic, partition, position, FETCH_SIZE);
+
+                    if (batch == null) {
+                        // No leader at the moment.
+                        Uninterruptibles.sleepUninterruptibly(FAILURE_BACKOFF_MS, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+
+                    if (!batch.isEmpty()) {
+                        position = batch.get(batch.size() - 1).nextOffset;
+                    }
+
+                    boolean progress = !batch.isEmpty();
+
+                    for (Subscription subscription : subscriptions) {
+                        progress |= deliver(subscription, start, batch);
+                    }
+
+                    if (!progress) {
+                        Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    }
+                } catch (Exception e) {
+                    LOG.warn("error tailing " + key, e);
+                    Uninterruptibles.sleepUninterruptibly(FAILURE_BACKOFF_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            for (Subscription subscription : subscriptions) {
+                subscription.cancel();
+            }
+
+            LOG.info("stopped tailing {}", key);
+        }
+
+        /** Queues what the subscriber has not yet seen; returns true if it was behind and moved on. */
+        private boolean deliver(Subscription subscription, long start, List<WrappedMessage> batch) {
+            if (subscription.isFull()) { return false; }
+
+            if (subscription.nextOffset < start) {
+                List<WrappedMessage> catchUp = kafka.fetchWhole(topic, partition, subscription.nextOffset, FETCH_SIZE);
+
+                if (catchUp == null) { return false; }
+
+                if (catchUp.isEmpty()) {
+                    // Only skip what has actually fallen out of retention.
+                    long earliest = earliest();
+
+                    if (earliest > subscription.nextOffset) {
+                        LOG.info("subscriber on {} skipping from {} to {}", key, subscription.nextOffset, earliest);
+                        subscription.nextOffset = earliest;
+                        return true;
+                    }
+
+                    return false;
+                }
+
+                if (!subscription.offer(catchUp)) { return false; }
+
+                subscription.nextOffset = catchUp.get(catchUp.size() - 1).nextOffset;
+                return true;
+            }
+
+            int from = 0;
+            while (from < batch.size() && batch.get(from).offset < subscription.nextOffset) { from++; }
+
+            if (from < batch.size()) {
+                if (subscription.offer(batch.subList(from, batch.size()))) {
+                    subscription.nextOffset = batch.get(batch.size() - 1).nextOffset;
+                }
+            } else if (subscription.pending.isEmpty()) {
+                subscription.offer(Collections.emptyList());
+            }
+
+            return false;
+        }
+
+        private long earliest() {
+            Topic described = kafka.getTopic(topic);
+            Topic.State state = described == null ? null : described.partition.get(Integer.toString(partition));
+
+            return state == null ? -1 : state.earliestOffset;
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        delivery = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, me + "-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+    }
+
+    @Override
+    public void stop() throws Exception {
+        synchronized (this) {
+            running = false;
+        }
+        executor.shutdown();
+        executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        delivery.shutdownNow();
+    }
+}
@@ -0,0 +1,324 @@
+package au.edu.ersa.reporting.kzk;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.TimeIndexConfig;
+import au.edu.ersa.reporting.http.api.Topic;
+import au.edu.ersa.reporting.http.api.Topic.State;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Sparse timestamp-to-offset index, built by sampling one message every few offsets of each partition.
+ * Samples are appended to one file per partition so the index survives restarts. Samples that have
+ * fallen out of retention are dropped on each pass, and the file is rewritten without them.
+ */
+public class TimeIndex implements Managed {
+    private final static Logger LOG = LoggerFactory.getLogger(TimeIndex.class);
+
+    private static final String ALL_TOPICS = "*";
+    private static final String SUFFIX = ".idx";
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final int MAX_SAMPLES_PER_RUN = 1000;
+    private static final int INITIAL_SAMPLES = 64;
+
+    private static class PartitionIndex {
+        private long[] offsets = new long[INITIAL_SAMPLES], timestamps = new long[INITIAL_SAMPLES];
+        private int size = 0;
+
+        synchronized boolean add(long offset, long timestamp) {
+            if (size > 0 && offset <= offsets[size - 1]) { return false; }
+
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+            }
+
+            offsets[size] = offset;
+            timestamps[size] = timestamp;
+            size++;
+
+            return true;
+        }
+
+        /** Drops samples below the earliest offset; returns how many went. */
+        synchronized int trim(long earliest) {
+            int from = 0;
+            while (from < size && offsets[from] < earliest) { from++; }
+
+            if (from == 0) { return 0; }
+
+            size -= from;
+
+            int capacity = Math.max(INITIAL_SAMPLES, Integer.highestOneBit(Math.max(1, size)) * 2);
+            long[] o = new long[Math.min(capacity, offsets.length)], t = new long[o.length];
+            System.arraycopy(offsets, from, o, 0, size);
+            System.arraycopy(timestamps, from, t, 0, size);
+            offsets = o;
+            timestamps = t;
+
+            return from;
+        }
+
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(timestamps[i]);
+            }
+        }
+
+        synchronized long lastOffset() {
+            return size == 0 ? -1 : offsets[size - 1];
+        }
+
+        /** Offset of the last sample older than since, or -1 if there is none. */
+        synchronized long seek(long since) {
+            int low = 0, high = size;
+
+            // first sample with timestamp >= since
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (timestamps[mid] < since) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low == 0 ? -1 : offsets[low - 1];
+        }
+    }
+
+    private final Kafka kafka;
+    private final Set<String> topics;
+    private final File directory;
+    private final long stride, intervalMs;
+
+    private final ConcurrentMap<String,PartitionIndex> indices = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public TimeIndex(Kafka kafka, TimeIndexConfig config) {
+        this.kafka = kafka;
+        this.topics = new HashSet<>(config.getTopics());
+        this.directory = config.getDirectory() == null ? null : new File(config.getDirectory());
+        this.stride = Math.max(1, config.getStride());
+        this.intervalMs = config.getInterval().toMilliseconds();
+    }
+
+    public boolean isEnabled(String topic) {
+        return !topics.isEmpty() && (topics.contains(ALL_TOPICS) || topics.contains(topic));
+    }
+
+    private static String key(String topic, int partition) {
+        return topic + "-" + partition;
+    }
+
+    /**
+     * Where to start reading to see every message from since onwards: the last sampled offset before it,
+     * or the earliest offset if the index has nothing older.
+     */
+    public long seek(String topic, int partition, long since) {
+        PartitionIndex index = indices.get(key(topic, partition));
+        long offset = index == null ? -1 : index.seek(since);
+
+        if (offset >= 0) { return offset; }
+
+        Topic described = kafka.getTopic(topic);
+        State state = described == null ? null : described.partition.get(Integer.toString(partition));
+
+        return state == null ? 0 : state.earliestOffset;
+    }
+
+    /** Top-level "timestamp" of a message, or -1 if it has none. */
+    public static long timestampOf(WrappedMessage message) {
+        try (JsonParser parser = message.parser()) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) { return -1; }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if (field.equals("timestamp") && value == JsonToken.VALUE_NUMBER_INT) {
+                    return parser.getLongValue();
+                }
+
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            LOG.debug("unparseable message", e);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Drops messages older than since or newer than until. Timestamps come from producers and need not be
+     * in offset order, so every message is checked rather than stopping at the first one past until.
+     */
+    public static List<WrappedMessage> filter(List<WrappedMessage> messages, long since, long until) {
+        List<WrappedMessage> filtered = new ArrayList<>();
+
+        for (WrappedMessage message : messages) {
+            long timestamp = timestampOf(message);
+
+            if (until > 0 && timestamp > until) { continue; }
+            if (since > 0 && timestamp < since) { continue; }
+
+            filtered.add(message);
+        }
+
+        return filtered;
+    }
+
+    private void index() {
+        for (String name : kafka.listTopics()) {
+            if (!isEnabled(name)) { continue; }
+
+            Topic topic = kafka.getTopic(name);
+            if (topic == null) { continue; }
+
+            for (Map.Entry<String,State> entry : topic.partition.entrySet()) {
+                int partition = Integer.parseInt(entry.getKey());
+
+                try {
+                    index(name, partition, entry.getValue());
+                } catch (Exception e) {
+                    LOG.warn("error indexing " + key(name, partition), e);
+                }
+            }
+        }
+    }
+
+    private void index(String topic, int partition, State state) throws IOException {
+        String key = key(topic, partition);
+        PartitionIndex index = indices.computeIfAbsent(key, k -> new PartitionIndex());
+        boolean trimmed = index.trim(state.earliestOffset) > 0;
+
+        long last = index.lastOffset();
+        long next = last < 0 ? state.earliestOffset : Math.max(last + stride, state.earliestOffset);
+
+        List<long[]> samples = new ArrayList<>();
+
+        while (next < state.latestOffset && samples.size() < MAX_SAMPLES_PER_RUN) {
+            List<WrappedMessage> messages = kafka.fetch(topic, partition, next, SAMPLE_BYTES);
+
+            if (messages == null) { break; }
+
+            if (!messages.isEmpty()) {
+                WrappedMessage first = messages.get(0);
+                long timestamp = timestampOf(first);
+
+                if (timestamp > 0 && index.add(first.offset, timestamp)) {
+                    samples.add(new long[] { first.offset, timestamp });
+                }
+            }
+
+            next += stride;
+        }
+
+        if (directory == null) { return; }
+
+        File file = new File(directory, key + SUFFIX);
+
+        if (trimmed) {
+            File temp = new File(directory, key + SUFFIX + ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                index.writeTo(out);
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else if (!samples.isEmpty()) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+                for (long[] sample : samples) {
+                    out.writeLong(sample[0]);
+                    out.writeLong(sample[1]);
+                }
+            }
+        }
+    }
+
+    private void load() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+
+        if (files == null) { return; }
+
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - SUFFIX.length());
+            PartitionIndex index = indices.computeIfAbsent(key, k -> new PartitionIndex());
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    index.add(in.readLong(), in.readLong());
+                }
+            } catch (EOFException e) {
+                // end of index
+            } catch (IOException e) {
+                LOG.warn("error loading time index " + file, e);
+            }
+        }
+
+        LOG.info("loaded {} time indices from {}", files.length, directory);
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (topics.isEmpty()) { return; }
+
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("unable to create time index directory: " + directory);
+            }
+
+            load();
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, toString().replace('@', '-'));
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                index();
+            } catch (Exception e) {
+                LOG.warn("time indexing failed", e);
+            }
+        }, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (scheduler != null) { scheduler.shutdownNow(); }
+    }
+}
@@ -1,9 +1,18 @@
 package au.edu.ersa.reporting.kzk;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import au.edu.ersa.reporting.http.Util;
+
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 
 @JsonInclude(Include.NON_NULL)
 public class WrappedMessage {
@@ -14,14 +23,44 @@ public class WrappedMessage {
     @JsonProperty("next_offset")
     public final long nextOffset;
 
-    @JsonRawValue
-    public final String message;
+    /** The message as stored: JSON text or Smile. */
+    @JsonProperty("message")
+    @JsonSerialize(using = RawMessageSerializer.class)
+    private final byte[] payload;
 
-    public WrappedMessage(int partition, long offset, long nextOffset, String topic, String message) {
+    public WrappedMessage(int partition, long offset, long nextOffset, String topic, byte[] payload) {
         this.partition = partition;
         this.offset = offset;
         this.nextOffset = nextOffset;
         this.topic = topic;
-        this.message = message;
+        this.payload = payload;
+    }
+
+    byte[] payload() { return payload; }
+
+    /** A parser over the stored message, in whichever format it was stored. */
+    JsonParser parser() throws IOException {
+        return (Util.isSmile(payload) ? Util.SMILE : Util.JSON).getFactory().createParser(payload);
+    }
+
+    /**
+     * Writes JSON text as is into a JSON response. Anything else is copied token by token, so a Smile
+     * message is only transcoded when the response is text, and binary responses never see text.
+     */
+    static class RawMessageSerializer extends JsonSerializer<byte[]> {
+        @Override
+        public void serialize(byte[] value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            boolean smile = Util.isSmile(value);
+
+            if (!smile && !gen.canWriteBinaryNatively()) {
+                gen.writeRawValue(new String(value, StandardCharsets.UTF_8));
+                return;
+            }
+
+            try (JsonParser parser = (smile ? Util.SMILE : Util.JSON).getFactory().createParser(value)) {
+                parser.nextToken();
+                gen.copyCurrentStructure(parser);
+            }
+        }
     }
 }
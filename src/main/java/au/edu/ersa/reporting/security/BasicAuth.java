@@ -5,8 +5,14 @@ import io.dropwizard.auth.basic.BasicCredentials;
 import io.dropwizard.lifecycle.Managed;
 
 import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
 import au.edu.ersa.reporting.security.ACL.Permission;
@@ -20,12 +26,23 @@ public abstract class BasicAuth implements Managed, Authenticator<BasicCredentia
 
     protected final AuthAlgorithm auth;
 
+    private final List<Consumer<Set<String>>> listeners = new CopyOnWriteArrayList<>();
+
     public BasicAuth(AuthAlgorithm auth) {
         this.auth = auth;
     }
 
     public AuthAlgorithm getAuthAlgorithm() { return auth; }
 
+    /** Called with the ids of users whose details or grants have changed behind this gateway's back. */
+    public void onChange(Consumer<Set<String>> listener) {
+        listeners.add(listener);
+    }
+
+    protected void changed(Set<String> ids) {
+        listeners.forEach(listener -> listener.accept(ids));
+    }
+
     @Override
     public void start() throws Exception {}
 
@@ -64,6 +81,18 @@ public abstract class BasicAuth implements Managed, Authenticator<BasicCredentia
 
     public abstract ACL getACL(String id, String topic);
 
+    /** The users found among the given ids, by id. */
+    public Map<String,User> getUsers(Collection<String> ids) {
+        Map<String,User> found = new HashMap<>();
+
+        for (String id : ids) {
+            User user = getUser(id);
+            if (user != null) { found.put(id, user); }
+        }
+
+        return found;
+    }
+
     public boolean canPerform(String id, String topic, Permission permission) {
         ACL acl = getACL(id, topic);
 
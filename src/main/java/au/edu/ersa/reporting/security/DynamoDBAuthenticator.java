@@ -4,7 +4,11 @@ import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.basic.BasicCredentials;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +29,12 @@ import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBSaveExpression;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
 import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheBuilderSpec;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public class DynamoDBAuthenticator extends BasicAuth {
     private final static Logger LOG = LoggerFactory.getLogger(DynamoDBAuthenticator.class);
@@ -32,7 +42,11 @@ public class DynamoDBAuthenticator extends BasicAuth {
     private final AmazonDynamoDB db;
     private final DynamoDBMapper mapper;
 
-    public DynamoDBAuthenticator(AuthAlgorithm auth, AWSCredentials credentials, Region region, String tablePrefix) {
+    // Users with their ACLs; concurrent misses on one id share a single load. Writes made here invalidate
+    // their user, writes made elsewhere are seen once the entry expires.
+    private final LoadingCache<String,Optional<User>> users;
+
+    public DynamoDBAuthenticator(AuthAlgorithm auth, AWSCredentials credentials, Region region, String tablePrefix, CacheBuilderSpec cache) {
         super(auth);
 
         db = new AmazonDynamoDBClient(credentials);
@@ -46,15 +60,64 @@ public class DynamoDBAuthenticator extends BasicAuth {
 
         mapper = new DynamoDBMapper(db, config);
 
+        users = CacheBuilder.from(cache).build(new CacheLoader<String,Optional<User>>() {
+            @Override
+            public Optional<User> load(String id) {
+                return Optional.fromNullable(withAccess(mapper.load(User.class, id)));
+            }
+
+            @Override
+            public Map<String,Optional<User>> loadAll(Iterable<? extends String> ids) {
+                Map<String,Optional<User>> loaded = new HashMap<>();
+                List<Object> keys = new ArrayList<>();
+
+                for (String id : ids) {
+                    loaded.put(id, Optional.absent());
+                    keys.add(new User(id));
+                }
+
+                for (List<Object> items : mapper.batchLoad(keys).values()) {
+                    for (Object item : items) {
+                        User user = (User)item;
+                        loaded.put(user.id, Optional.of(withAccess(user)));
+                    }
+                }
+
+                return loaded;
+            }
+        });
+
         if (getUserCount() == 0) {
             User user = createUser("system", true);
             LOG.info("initial account (please modify or delete!): " + user);
         }
     }
 
+    private User withAccess(User user) {
+        if (user != null) {
+            ACL template = new ACL(user.id, null);
+            DynamoDBQueryExpression<ACL> query = new DynamoDBQueryExpression<ACL>().withHashKeyValues(template);
+
+            user.setAccess(new ArrayList<>(mapper.query(ACL.class, query)));
+        }
+
+        return user;
+    }
+
+    /** The shared cached instance, which must not be modified. */
+    private User cached(String id) {
+        if (id == null) { return null; }
+
+        try {
+            return users.getUnchecked(id).orNull();
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
     @Override
     public Optional<User> authenticate(BasicCredentials credentials) throws AuthenticationException {
-        User user = getUser(credentials.getUsername());
+        User user = cached(credentials.getUsername());
 
         if ((user != null) && auth.isValid(credentials, user)) {
             LOG.info("authenticated: " + user.id);
@@ -70,6 +133,7 @@ public class DynamoDBAuthenticator extends BasicAuth {
         user.secret = null;
 
         mapper.save(user);
+        users.invalidate(user.id);
 
         return user;
     }
@@ -81,6 +145,7 @@ public class DynamoDBAuthenticator extends BasicAuth {
         if (user != null) {
             user.admin = isAdmin;
             mapper.save(user);
+            users.invalidate(id);
             return true;
         } else {
             return false;
@@ -93,6 +158,7 @@ public class DynamoDBAuthenticator extends BasicAuth {
         String secret = generateRandomString();
         User user = new User(id, auth.generateSecret(secret), admin);
         mapper.save(user, IF_NOT_EXISTS);
+        users.invalidate(id);
         user.secret = secret;
         return user;
     }
@@ -112,6 +178,7 @@ public class DynamoDBAuthenticator extends BasicAuth {
             String secret = generateRandomString();
             user.secret = auth.generateSecret(secret);
             mapper.save(user);
+            users.invalidate(id);
             user.secret = secret;
             return user;
         }
@@ -119,16 +186,24 @@ public class DynamoDBAuthenticator extends BasicAuth {
 
     @Override
     public User getUser(String id) {
-        User user = mapper.load(User.class, id);
+        User user = cached(id);
 
-        if (user != null) {
-            ACL template = new ACL(id, null);
-            DynamoDBQueryExpression<ACL> query = new DynamoDBQueryExpression<ACL>().withHashKeyValues(template);
+        return user != null ? user.clone() : null;
+    }
 
-            user.setAccess(new ArrayList<>(mapper.query(ACL.class, query)));
+    @Override
+    public Map<String,User> getUsers(Collection<String> ids) {
+        Map<String,User> found = new HashMap<>();
+
+        try {
+            users.getAll(ids).forEach((id, user) -> {
+                if (user.isPresent()) { found.put(id, user.get().clone()); }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
         }
 
-        return user;
+        return found;
     }
 
     @Override
@@ -136,6 +211,7 @@ public class DynamoDBAuthenticator extends BasicAuth {
         User user = getUser(id);
         if (user != null) {
             mapper.delete(user);
+            users.invalidate(id);
             return true;
         } else {
             return false;
@@ -155,15 +231,27 @@ public class DynamoDBAuthenticator extends BasicAuth {
     @Override
     public void deleteACL(String id, String topic) {
         mapper.delete(new ACL(id, topic));
+        users.invalidate(id);
     }
 
     @Override
     public void setACL(String id, String topic, Permission permission) {
         mapper.save(new ACL(id, topic, permission));
+        users.invalidate(id);
     }
 
     @Override
     public ACL getACL(String id, String topic) {
-        return mapper.load(ACL.class, id, topic);
+        User user = cached(id);
+        ACL acl = user != null ? user.getACL(topic) : null;
+
+        return acl != null ? acl.clone() : null;
+    }
+
+    @Override
+    public boolean canPerform(String id, String topic, Permission permission) {
+        User user = cached(id);
+
+        return user != null && user.can(topic, permission);
     }
 }
@@ -2,8 +2,10 @@ package au.edu.ersa.reporting.security;
 
 import io.dropwizard.auth.basic.BasicCredentials;
 
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -14,6 +16,7 @@ import au.edu.ersa.reporting.http.Wrap;
 
 public class HMAC implements AuthAlgorithm {
     private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] DERIVATION_SALT = "au.edu.ersa.reporting key derivation".getBytes(StandardCharsets.UTF_8);
 
     private final ThreadLocal<Mac> mac;
     private final SecretKeySpec key;
@@ -43,6 +46,29 @@ public class HMAC implements AuthAlgorithm {
         return Hex.encodeHexString(mac.get().doFinal(plaintext.getBytes()));
     }
 
+    /**
+     * Derives a key for the given purpose from hexKey with HKDF (RFC 5869). The extract step keys the MAC with
+     * a fixed salt rather than hexKey, so no derived key can equal a secret generated from a password.
+     */
+    public static byte[] deriveKey(String hexKey, String purpose) {
+        byte[] prk = mac(DERIVATION_SALT, Wrap.runtimeException(() -> Hex.decodeHex(hexKey.toCharArray())));
+        byte[] info = purpose.getBytes(StandardCharsets.UTF_8);
+        byte[] block = Arrays.copyOf(info, info.length + 1);
+        block[info.length] = 1;
+
+        return mac(prk, block);
+    }
+
+    private static byte[] mac(byte[] key, byte[] data) {
+        try {
+            Mac m = Mac.getInstance(ALGORITHM);
+            m.init(new SecretKeySpec(key, ALGORITHM));
+            return m.doFinal(data);
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length != 2) {
             System.err.println("usage: hexkey plaintext");
@@ -5,15 +5,23 @@ import io.dropwizard.auth.basic.BasicCredentials;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
-import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,7 +31,6 @@ import au.edu.ersa.reporting.security.ACL.Permission;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.google.common.base.Optional;
-import com.google.common.util.concurrent.Uninterruptibles;
 
 public class LocalFileAuthenticator extends BasicAuth {
     private final static Logger LOG = LoggerFactory.getLogger(LocalFileAuthenticator.class);
@@ -31,86 +38,200 @@ public class LocalFileAuthenticator extends BasicAuth {
 
     private final Refresh refresh;
 
-    private Map<String,User> local = Collections.emptyMap();
+    // Replaced whole on each reload.
+    private volatile Map<String,User> local = Collections.emptyMap();
 
     public LocalFileAuthenticator(File file, AuthAlgorithm auth) {
         super(auth);
 
-        refresh = new Refresh(file, (map) -> { local = map; });
+        refresh = new Refresh(file);
     }
 
-    private static class Refresh implements Runnable {
-        private final Consumer<Map<String,User>> update;
-        private final File file;
-        private boolean running = true;
-        private long lastModified = 0;
+    /**
+     * Reloads the file whenever its directory reports a change to it, backing off while it fails to load.
+     * A symlinked file's target directory is watched too, and any change beside the link counts, as the
+     * link may be repointed (as with an atomic "..data" swap). Since not every such change is reported
+     * where it is watched, the target's modification time is also checked every so often.
+     */
+    private class Refresh implements Runnable {
+        private static final long SETTLE_MS = 200;
+        private static final int MAX_BACKOFF_S = 64;
+        private static final long POLL_S = 60;
+
+        private final Path file;
+        private WatchService watcher;
         private int failures = 0;
 
-        public Refresh(File file, Consumer<Map<String,User>> update) {
-            this.file = file;
-            this.update = update;
+        private Path targetDirectory;
+        private WatchKey targetKey;
+        private Path loadedTarget;
+        private FileTime loadedModified;
+
+        public Refresh(File file) {
+            this.file = file.toPath().toAbsolutePath();
         }
 
-        public void start() {
+        public void start() throws IOException {
+            watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchTarget();
+
             new Thread(this, toString()).start();
         }
 
-        public void stop() {
-            running = false;
+        /** Follows the file to its current target and watches that directory, if it is another one. */
+        private void watchTarget() {
+            try {
+                Path directory = file.toRealPath().getParent();
+
+                if (directory.equals(targetDirectory) || directory.equals(file.getParent().toRealPath())) { return; }
+
+                if (targetKey != null) { targetKey.cancel(); }
+
+                targetKey = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                targetDirectory = directory;
+            } catch (IOException e) {
+                LOG.warn("unable to watch the target of {}: {}", file, e.toString());
+            }
         }
 
-        private void sleep() {
-            int seconds = 2 * (int)Math.pow(2, failures);
-            LOG.debug("Sleeping for {} seconds", seconds);
-            Uninterruptibles.sleepUninterruptibly(seconds, TimeUnit.SECONDS);
+        private boolean isModified() {
+            try {
+                Path target = file.toRealPath();
+                return !target.equals(loadedTarget) || !Files.getLastModifiedTime(target).equals(loadedModified);
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        public void stop() throws IOException {
+            watcher.close();
         }
 
         @Override
         public void run() {
-            while (running) {
-                try {
-                    long lastModifiedCheck = Files.readAttributes(file.toPath(), PosixFileAttributes.class).lastModifiedTime().toMillis();
-                    if (lastModifiedCheck > lastModified) {
-                        LOG.info("Reloading: " + file);
-                        update.accept(Collections.unmodifiableMap(load(file)));
-                        lastModified = lastModifiedCheck;
-                        failures = 0;
+            boolean pending = true;
+
+            try {
+                while (true) {
+                    if (pending) {
+                        try {
+                            reload();
+                            pending = false;
+                            failures = 0;
+                        } catch (Exception e) {
+                            LOG.error("Error refreshing: " + file, e);
+                            failures++;
+                        }
                     }
-                } catch (Exception e) {
-                    LOG.error("Error refreshing: " + file, e);
-                    failures++;
-                }
 
-                sleep();
+                    WatchKey key = watcher.poll(pending ? Math.min(MAX_BACKOFF_S, 2 << Math.min(failures, 5)) : POLL_S, TimeUnit.SECONDS);
+
+                    if (key == null) {
+                        pending |= isModified();
+                        continue;
+                    }
+
+                    // Let a burst of writes settle, then take every event so far.
+                    Thread.sleep(SETTLE_MS);
+
+                    for (; key != null; key = watcher.poll()) {
+                        pending |= concernsFile(key);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                LOG.debug("stopped watching {}", file);
             }
         }
 
-        private static class AuthFile {
-            public List<User> user;
-            public List<ACL> acl;
+        private boolean concernsFile(WatchKey key) {
+            boolean concerns = key == targetKey || Files.isSymbolicLink(file);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                concerns |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+            }
+
+            key.reset();
+
+            return concerns;
         }
 
-        private Map<String,User> load(File file) throws IOException {
-            Map<String,User> map = new HashMap<>();
+        private void reload() throws IOException {
+            watchTarget();
+
+            Path target = file.toRealPath();
+            FileTime modified = Files.getLastModifiedTime(target);
+
+            AuthFile authFile = YAML.readValue(target.toFile(), AuthFile.class);
 
-            AuthFile authFile = YAML.readValue(file, AuthFile.class);
+            if (authFile.user == null) { authFile.user = Collections.emptyList(); }
+            if (authFile.acl == null) { authFile.acl = Collections.emptyList(); }
+
+            Map<String,List<ACL>> access = new HashMap<>();
 
             for (User user : authFile.user) {
-                map.put(user.id, user);
+                access.put(user.id, user.access == null ? new ArrayList<>() : new ArrayList<>(user.access));
             }
 
             for (ACL acl : authFile.acl) {
-                User entry = map.get(acl.getId());
+                List<ACL> entry = access.get(acl.getId());
                 if (entry != null) {
+                    entry.add(acl);
+                }
+            }
 
-                    entry.access.add(acl);
+            Map<String,User> previous = local;
+            Map<String,User> next = new HashMap<>();
+            Set<String> changed = new HashSet<>();
+
+            for (User user : authFile.user) {
+                User existing = previous.get(user.id);
+                List<ACL> acls = access.get(user.id);
+
+                if (existing != null && isUnchanged(existing, user, acls)) {
+                    // Keeps the grants already indexed.
+                    next.put(user.id, existing);
+                } else {
+                    user.setAccess(acls);
+                    next.put(user.id, user);
+                    changed.add(user.id);
                 }
             }
 
-            return Collections.unmodifiableMap(map);
+            for (String id : previous.keySet()) {
+                if (!next.containsKey(id)) { changed.add(id); }
+            }
+
+            local = Collections.unmodifiableMap(next);
+            loadedTarget = target;
+            loadedModified = modified;
+
+            LOG.info("Reloaded {}: {} users, {} changed", file, next.size(), changed.size());
+
+            if (!changed.isEmpty()) { changed(changed); }
         }
     }
 
+    private static class AuthFile {
+        public List<User> user;
+        public List<ACL> acl;
+    }
+
+    private static boolean isUnchanged(User existing, User user, List<ACL> acls) {
+        if (existing.admin != user.admin || !Objects.equals(existing.secret, user.secret)) { return false; }
+
+        List<ACL> current = existing.access == null ? Collections.emptyList() : existing.access;
+        if (current.size() != acls.size()) { return false; }
+
+        for (int i = 0; i < acls.size(); i++) {
+            if (!Objects.equals(current.get(i).getTopic(), acls.get(i).getTopic()) || !Objects.equals(current.get(i).getPermission(), acls.get(i).getPermission())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     @Override
     public Optional<User> authenticate(BasicCredentials credentials) throws AuthenticationException {
         User user = local.get(credentials.getUsername());
@@ -141,17 +262,9 @@ public class LocalFileAuthenticator extends BasicAuth {
 
     @Override
     public boolean canPerform(String id, String topic, Permission permission) {
-        User userACL = local.get(id);
-
-        if (userACL == null) { return false; }
-
-        for (ACL acl : userACL.access) {
-            if (acl.getTopic().equalsIgnoreCase(topic) && acl.getPermission().contains(permission.toString())) {
-                return true;
-            }
-        }
+        User user = local.get(id);
 
-        return false;
+        return user != null && user.can(topic, permission);
     }
 
     @Override
@@ -168,14 +281,6 @@ public class LocalFileAuthenticator extends BasicAuth {
     public ACL getACL(String id, String topic) {
         User user = local.get(id);
 
-        if (user != null) {
-            for (ACL acl : user.access) {
-                if (acl.getTopic().equalsIgnoreCase(topic)) {
-                    return acl;
-                }
-            }
-        }
-
-        return null;
+        return user != null ? user.getACL(topic) : null;
     }
 }
@@ -0,0 +1,145 @@
+package au.edu.ersa.reporting.security;
+
+import io.dropwizard.auth.AuthenticationException;
+import io.dropwizard.auth.Authenticator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.edu.ersa.reporting.security.ACL.Permission;
+
+import com.google.common.base.Optional;
+
+/**
+ * Stateless bearer tokens carrying a user's id, admin flag and grants, signed with HMAC-SHA256. Verifying
+ * one takes a single MAC and no lookup, so changes to the user take effect only when the token expires.
+ * A token is the URL-safe Base64 of the payload and of its MAC, joined by a dot.
+ */
+public class SessionTokens implements Authenticator<String,User> {
+    private final static Logger LOG = LoggerFactory.getLogger(SessionTokens.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 1;
+
+    /** Above this, a token would not fit comfortably in a request header. */
+    public static final int MAX_PAYLOAD_BYTES = 4096;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final ThreadLocal<Mac> mac;
+    private final long lifetimeMs;
+
+    public SessionTokens(byte[] key, long lifetimeMs) {
+        SecretKeySpec spec = new SecretKeySpec(key, ALGORITHM);
+
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac m = Mac.getInstance(ALGORITHM);
+                m.init(spec);
+                return m;
+            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        this.lifetimeMs = lifetimeMs;
+    }
+
+    public long getLifetimeMs() { return lifetimeMs; }
+
+    /** A token for the user expiring at the given time, or null if its grants make it too large. */
+    public String issue(User user, long expires) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeLong(expires);
+            out.writeBoolean(user.admin);
+            out.writeUTF(user.id);
+
+            List<ACL> access = user.access == null ? new ArrayList<>() : user.access.stream().filter(acl -> acl.getTopic() != null).collect(Collectors.toList());
+            out.writeInt(access.size());
+
+            for (ACL acl : access) {
+                out.writeUTF(acl.getTopic());
+                out.writeByte(TopicPermissions.bits(acl.getPermission()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (bytes.size() > MAX_PAYLOAD_BYTES) { return null; }
+
+        byte[] payload = bytes.toByteArray();
+
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(mac.get().doFinal(payload));
+    }
+
+    @Override
+    public Optional<User> authenticate(String token) throws AuthenticationException {
+        int dot = token.indexOf('.');
+        if (dot < 0) { return Optional.absent(); }
+
+        byte[] payload, signature;
+
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return Optional.absent();
+        }
+
+        if (!MessageDigest.isEqual(signature, mac.get().doFinal(payload))) {
+            LOG.warn("session token with a bad signature");
+            return Optional.absent();
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (in.readByte() != VERSION || in.readLong() < System.currentTimeMillis()) { return Optional.absent(); }
+
+            boolean admin = in.readBoolean();
+            User user = new User(in.readUTF(), admin);
+
+            int count = in.readInt();
+            List<ACL> access = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                String topic = in.readUTF();
+                Permission permission = permission(in.readByte());
+
+                if (permission != null) { access.add(new ACL(user.id, topic, permission)); }
+            }
+
+            user.setAccess(access);
+
+            return Optional.of(user);
+        } catch (IOException e) {
+            return Optional.absent();
+        }
+    }
+
+    private static Permission permission(int bits) {
+        switch (bits) {
+        case TopicPermissions.READ: return Permission.READ_ONLY;
+        case TopicPermissions.WRITE: return Permission.WRITE_ONLY;
+        case TopicPermissions.READ | TopicPermissions.WRITE: return Permission.READ_WRITE;
+        default: return null;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package au.edu.ersa.reporting.security;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A user's grants indexed by lower-cased topic, as a bitmask of {@link #READ} and {@link #WRITE}. A grant
+ * for a topic ending in "*" covers every topic with that prefix ("*" alone covers all of them); these are
+ * kept in a trie whose nodes hold their children in sorted arrays.
+ */
+final class TopicPermissions {
+    static final int READ = 1, WRITE = 2;
+
+    static final TopicPermissions NONE = new TopicPermissions(null);
+
+    private static final char WILDCARD = '*';
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        int bits;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+
+        Node add(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) { return children[i]; }
+
+            i = -i - 1;
+
+            char[] k = new char[keys.length + 1];
+            Node[] n = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(children, 0, n, 0, i);
+            System.arraycopy(keys, i, k, i + 1, keys.length - i);
+            System.arraycopy(children, i, n, i + 1, children.length - i);
+            k[i] = c;
+            n[i] = new Node();
+
+            keys = k;
+            children = n;
+
+            return n[i];
+        }
+    }
+
+    /** The list this was built from, so that a replaced list is noticed; null for {@link #NONE}. */
+    final List<ACL> source;
+
+    private final Map<String,Integer> exact = new HashMap<>();
+    private final Map<String,ACL> acls = new HashMap<>();
+    private final Node prefixes;
+
+    TopicPermissions(List<ACL> source) {
+        this.source = source;
+
+        Node root = null;
+
+        for (ACL acl : source == null ? Collections.<ACL>emptyList() : source) {
+            if (acl.getTopic() == null) { continue; }
+
+            String topic = normalise(acl.getTopic());
+            int bits = bits(acl.getPermission());
+
+            if (!topic.isEmpty() && topic.indexOf(WILDCARD) == topic.length() - 1) {
+                if (root == null) { root = new Node(); }
+
+                Node node = root;
+                for (int i = 0; i < topic.length() - 1; i++) {
+                    node = node.add(topic.charAt(i));
+                }
+
+                node.bits |= bits;
+            } else {
+                exact.merge(topic, bits, (a, b) -> a | b);
+                acls.putIfAbsent(topic, acl);
+            }
+        }
+
+        this.prefixes = root;
+    }
+
+    private static String normalise(String topic) {
+        return topic.toLowerCase(Locale.ROOT);
+    }
+
+    static int bits(String permission) {
+        if (permission == null) { return 0; }
+
+        int bits = 0;
+
+        for (int i = 0; i < permission.length(); i++) {
+            char c = permission.charAt(i);
+
+            if (c == 'r' || c == 'R') {
+                bits |= READ;
+            } else if (c == 'w' || c == 'W') {
+                bits |= WRITE;
+            }
+        }
+
+        return bits;
+    }
+
+    /** Everything granted on the topic, directly or by prefix. */
+    int get(String topic) {
+        String key = normalise(topic);
+        Integer direct = exact.get(key);
+        int bits = direct == null ? 0 : direct;
+
+        Node node = prefixes;
+
+        for (int i = 0; node != null; i++) {
+            bits |= node.bits;
+            node = i < key.length() ? node.child(key.charAt(i)) : null;
+        }
+
+        return bits;
+    }
+
+    boolean allows(String topic, int required) {
+        return (get(topic) & required) == required;
+    }
+
+    /** The grant for exactly this topic, if any. */
+    ACL getACL(String topic) {
+        return acls.get(normalise(topic));
+    }
+}
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import au.edu.ersa.reporting.http.Util;
+import au.edu.ersa.reporting.security.ACL.Permission;
 
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
@@ -22,6 +23,8 @@ public class User implements Cloneable {
 
     public List<ACL> access;
 
+    private TopicPermissions permissions = TopicPermissions.NONE;
+
     @DynamoDBHashKey
     public String getId() {
         return id;
@@ -56,6 +59,7 @@ public class User implements Cloneable {
 
     public void setAccess(List<ACL> access) {
         this.access = Collections.unmodifiableList(access);
+        this.permissions = new TopicPermissions(this.access);
     }
 
     public User() {}
@@ -78,32 +82,40 @@ public class User implements Cloneable {
         this.admin = admin;
     }
 
-    private boolean hasACL(String topic, String action) {
-        if (access == null) { return false; }
-
-        action = action.toLowerCase();
+    /** The index of access, rebuilt if the list has been replaced directly. */
+    private TopicPermissions permissions() {
+        TopicPermissions current = permissions;
 
-        for (ACL acl : access) {
-            if (acl.getTopic().equalsIgnoreCase(topic) && acl.getPermission().toLowerCase().contains(action)) {
-                return true;
-            }
+        if (current.source != access) {
+            current = access == null ? TopicPermissions.NONE : new TopicPermissions(access);
+            permissions = current;
         }
 
-        return false;
+        return current;
+    }
+
+    /** Whether the user's grants on the topic, exact or by prefix, include the permission. */
+    public boolean can(String topic, Permission permission) {
+        return permissions().allows(topic, TopicPermissions.bits(permission.toString()));
+    }
+
+    /** The grant for exactly this topic, if any. */
+    public ACL getACL(String topic) {
+        return permissions().getACL(topic);
     }
 
     public boolean canRead(String topic) {
-        return admin || hasACL(topic, "r");
+        return admin || permissions().allows(topic, TopicPermissions.READ);
     }
 
     public boolean canWrite(String topic) {
-        return admin || hasACL(topic, "w");
+        return admin || permissions().allows(topic, TopicPermissions.WRITE);
     }
 
     public User clone(boolean sanitise) {
         User clone = new User(id, sanitise ? null : secret, admin);
         if (access != null) {
-            clone.access = access.stream().map(acl -> acl.clone()).collect(Collectors.toList());
+            clone.setAccess(access.stream().map(acl -> acl.clone()).collect(Collectors.toList()));
         }
         return clone;
     }
@@ -0,0 +1,95 @@
+package au.edu.ersa.reporting.http.resources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import au.edu.ersa.reporting.http.KafkaReportingConfiguration.DedupConfig;
+import au.edu.ersa.reporting.http.api.Message;
+import au.edu.ersa.reporting.http.api.MessageValidator;
+import au.edu.ersa.reporting.kzk.Deduplicator;
+import au.edu.ersa.reporting.kzk.Insertion;
+import au.edu.ersa.reporting.kzk.Kafka;
+import au.edu.ersa.reporting.security.ACL;
+import au.edu.ersa.reporting.security.ACL.Permission;
+import au.edu.ersa.reporting.security.User;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class TopicResourceTest {
+    private static final String TOPIC = "telemetry";
+
+    private Kafka kafka;
+    private TopicResource resource;
+    private User user;
+    private HttpServletRequest request;
+    private AsyncResponse response;
+
+    @Before
+    public void setUp() {
+        kafka = mock(Kafka.class);
+        resource = new TopicResource(kafka, Runnable::run, null, null, new Deduplicator(new DedupConfig(), new MetricRegistry()), MessageValidator.DEFAULT);
+
+        user = new User("collector");
+        user.setAccess(Collections.singletonList(new ACL("collector", TOPIC, Permission.READ_WRITE)));
+
+        request = mock(HttpServletRequest.class);
+        when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+
+        response = mock(AsyncResponse.class);
+    }
+
+    private static byte[] line() {
+        return ("{\"id\":\"" + UUID.randomUUID() + "\",\"version\":1,\"schema\":\"test\",\"data\":{\"hostname\":\"h\",\"timestamp\":1}}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void linesReachTheProducerBeforeTheBodyEnds() throws Exception {
+        PipedOutputStream body = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(body, 1024 * 1024);
+
+        Thread ingest = new Thread(() -> resource.postLines(user, request, TOPIC, true, in, response));
+        ingest.start();
+
+        for (int i = 0; i < TopicResource.VALIDATION_BATCH; i++) {
+            body.write(line());
+        }
+        body.flush();
+
+        // The first run is sent while the body is still open.
+        verify(kafka, timeout(10000).times(TopicResource.VALIDATION_BATCH)).insert(eq(TOPIC), any(Message.class), any(Insertion.class));
+        assertTrue(ingest.isAlive());
+        verify(response, never()).resume(any(Object.class));
+
+        body.write(line());
+        body.close();
+        ingest.join(10000);
+
+        verify(kafka, times(TopicResource.VALIDATION_BATCH + 1)).insert(eq(TOPIC), any(Message.class), any(Insertion.class));
+
+        ArgumentCaptor<Object> resumed = ArgumentCaptor.forClass(Object.class);
+        verify(response).resume(resumed.capture());
+        assertEquals(Response.Status.NO_CONTENT.getStatusCode(), ((Response)resumed.getValue()).getStatus());
+    }
+}